@@ -0,0 +1,43 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.pipeline;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.services.indexing.image.thrift.IngestedImage;
+
+/**
+ * An ingested image message waiting in a {@link MicroBatcher}, together with the visibility it was received with.
+ */
+final class BatchedImage {
+    private final Visibility visibility;
+    private final IngestedImage ingestedImage;
+
+    BatchedImage(Visibility visibility, IngestedImage ingestedImage) {
+        this.visibility = visibility;
+        this.ingestedImage = ingestedImage;
+    }
+
+    Visibility getVisibility() {
+        return visibility;
+    }
+
+    IngestedImage getIngestedImage() {
+        return ingestedImage;
+    }
+
+    String getImageId() {
+        return ingestedImage.getImageInfo().getImageId();
+    }
+}
@@ -16,6 +16,7 @@ package ezbake.data.image.frack.pipeline;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
+import static ezbake.data.image.frack.utilities.ingest.PipelineDocumentIngester.INLINE_TOPIC_NAME;
 import static ezbake.data.image.frack.utilities.ingest.PipelineDocumentIngester.TOPIC_NAME;
 
 import org.slf4j.Logger;
@@ -23,14 +24,18 @@ import org.slf4j.Logger;
 import ezbake.frack.api.Listener;
 import ezbake.frack.api.Pipeline;
 import ezbake.frack.api.PipelineBuilder;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
 import ezbake.services.indexing.image.thrift.IngestedImage;
 
 public class ImagePipelineBuilder implements PipelineBuilder {
     private static final Logger logger = getLogger(ImagePipelineBuilder.class);
 
     private static final String LISTENER_ID = "_image_listener";
+    private static final String INLINE_LISTENER_ID = "_inline_image_listener";
     private static final String THUMBNAIL_WORKER_ID = "_thumbnail_worker";
     private static final String METADATA_WORKER_ID = "_metadata_worker";
+    private static final String INLINE_THUMBNAIL_WORKER_ID = "_inline_thumbnail_worker";
+    private static final String INLINE_METADATA_WORKER_ID = "_inline_metadata_worker";
 
     @Override
     public Pipeline build() {
@@ -53,6 +58,22 @@ public class ImagePipelineBuilder implements PipelineBuilder {
         pipeline.addWorker(metadataWorkerId, new MetadataWorker());
         pipeline.addConnection(lId, metadataWorkerId);
 
+        // Small images are broadcast with their bytes so these workers do not need to read them from Accumulo
+        final String inlineLId = pid + INLINE_LISTENER_ID;
+        final String inlineThumbnailWorkerId = pid + INLINE_THUMBNAIL_WORKER_ID;
+        final String inlineMetadataWorkerId = pid + INLINE_METADATA_WORKER_ID;
+
+        final Listener<Image> inlineImageListener = new Listener<>(Image.class);
+        inlineImageListener.registerListenerTopic(INLINE_TOPIC_NAME);
+
+        pipeline.addListener(inlineLId, inlineImageListener);
+
+        pipeline.addWorker(inlineThumbnailWorkerId, new InlineImageWorker(new ThumbnailWorker()));
+        pipeline.addConnection(inlineLId, inlineThumbnailWorkerId);
+
+        pipeline.addWorker(inlineMetadataWorkerId, new InlineImageWorker(new MetadataWorker()));
+        pipeline.addConnection(inlineLId, inlineMetadataWorkerId);
+
         return pipeline;
     }
 }
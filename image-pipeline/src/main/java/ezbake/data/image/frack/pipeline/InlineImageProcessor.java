@@ -0,0 +1,37 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.pipeline;
+
+import java.io.Serializable;
+import java.util.Properties;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
+
+/**
+ * Pipeline stage that can process an image whose bytes were broadcast inline, without reading it from Accumulo.
+ */
+interface InlineImageProcessor extends Serializable {
+    void initialize(Properties properties);
+
+    void cleanup();
+
+    /**
+     * @param imageInfo Information about the image, as it would have been broadcast in an
+     *        {@link ezbake.services.indexing.image.thrift.IngestedImage}
+     */
+    void processImage(Visibility visibility, IngestedImageInfo imageInfo, Image image);
+}
@@ -0,0 +1,75 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.pipeline;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getImageId;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.frack.api.Worker;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
+
+/**
+ * Receives images broadcast inline on {@link ezbake.data.image.frack.utilities.ingest.PipelineDocumentIngester
+ * #INLINE_TOPIC_NAME} and hands them to a thumbnail or metadata stage, which then skips its Accumulo read.
+ */
+public class InlineImageWorker extends Worker<Image> {
+    private static final long serialVersionUID = 2687385104519316045L;
+    private static final Logger logger = getLogger(InlineImageWorker.class);
+
+    private final InlineImageProcessor processor;
+
+    InlineImageWorker(InlineImageProcessor processor) {
+        super(Image.class);
+        this.processor = processor;
+    }
+
+    @Override
+    public void initialize(Properties properties) {
+        super.initialize(properties);
+        processor.initialize(properties);
+    }
+
+    @Override
+    public void cleanup() {
+        super.cleanup();
+        processor.cleanup();
+    }
+
+    @Override
+    public void process(Visibility visibility, Image image) {
+        try {
+            // The message is the stored image itself, so its ID comes from the same function the ingester stores it by
+            final IngestedImageInfo imageInfo = new IngestedImageInfo();
+            imageInfo.setOrigDocumentUri(image.getOriginalDocumentUri());
+            imageInfo.setVisibility(visibility);
+            imageInfo.setImageId(bytesToHex(getImageId(image)));
+            imageInfo.setMimeType(image.getMimeType());
+            imageInfo.setSize(image.getBlob().length);
+            imageInfo.setFileName(image.getFileName());
+            processor.processImage(visibility, imageInfo, image);
+        } catch (final NoSuchAlgorithmException ex) {
+            logger.error("Could not compute ID of inline image " + image.getFileName(), ex);
+        }
+    }
+}
@@ -18,11 +18,17 @@ import static org.slf4j.LoggerFactory.getLogger;
 
 import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
 import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+import static ezbake.data.image.frack.utilities.accumulo.AccumuloStoreConfig.INGEST_PROFILE;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
@@ -31,12 +37,15 @@ import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import ezbake.data.image.frack.utilities.accumulo.AccumuloThriftReaderWriter;
 import ezbake.data.image.frack.utilities.accumulo.IndexingStatusReaderWriter;
 
 import ezbake.base.thrift.EzSecurityToken;
 import ezbake.base.thrift.EzSecurityTokenException;
 import ezbake.base.thrift.Visibility;
+import ezbake.common.properties.EzProperties;
 import ezbake.frack.api.Worker;
 import ezbake.security.client.EzbakeSecurityClient;
 import ezbake.services.extractor.imagemetadata.thrift.Image;
@@ -50,19 +59,34 @@ import ezbake.services.indexing.image.thrift.ImageIndexerServiceConstants;
 import ezbake.services.indexing.image.thrift.IndexedImage;
 import ezbake.services.indexing.image.thrift.IndexingStage;
 import ezbake.services.indexing.image.thrift.IngestedImage;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
 import ezbake.services.indexing.image.thrift.InsertFailed;
 import ezbake.thrift.ThriftClientPool;
 import ezbakehelpers.ezconfigurationhelpers.application.EzBakeApplicationConfigurationHelper;
 
-public class MetadataWorker extends Worker<IngestedImage> {
+/**
+ * Extracts the metadata of ingested images and indexes it. Up to {@code image.pipeline.metadata.maxInFlight}
+ * extractions run at once on a pool of the worker's own, so a slow extractor holds a slot rather than the thread Frack
+ * delivers messages on. A message is acknowledged once its image is read and its extraction started; callers block
+ * while all slots are taken. An extraction cut short by a crash leaves the image without its METADATA_EXTRACTED
+ * stage.
+ */
+public class MetadataWorker extends Worker<IngestedImage> implements InlineImageProcessor,
+        MicroBatcher.BatchHandler<BatchedImage> {
     private static final long serialVersionUID = 4841242625011285630L;
     private static final Logger logger = getLogger(MetadataWorker.class);
 
+    static final String MAX_IN_FLIGHT_KEY = "image.pipeline.metadata.maxInFlight";
+
     private EzSecurityToken token;
     private ThriftClientPool pool;
     private EzbakeSecurityClient securityClient;
     private AccumuloThriftReaderWriter accumuloReaderWriter;
     private IndexingStatusReaderWriter statusWriter;
+    private SharedImageCache imageCache;
+    private MicroBatcher<BatchedImage> batcher;
+    private ExecutorService extractionExecutor;
+    private Semaphore extractionPermits;
 
     public MetadataWorker() {
         super(IngestedImage.class);
@@ -71,6 +95,8 @@ public class MetadataWorker extends Worker<IngestedImage> {
     @Override
     public void initialize(Properties properties) {
         super.initialize(properties);
+        imageCache = SharedImageCache.getInstance(properties);
+        initializeExtractions(new EzProperties(properties, false).getInteger(MAX_IN_FLIGHT_KEY, 4));
 
         try {
             pool = new ThriftClientPool(properties);
@@ -79,8 +105,9 @@ public class MetadataWorker extends Worker<IngestedImage> {
             final String securityId = new EzBakeApplicationConfigurationHelper(properties).getSecurityID();
             token = securityClient.fetchAppToken(securityId);
 
-            accumuloReaderWriter = new AccumuloThriftReaderWriter(properties);
+            accumuloReaderWriter = new AccumuloThriftReaderWriter(properties, INGEST_PROFILE);
             statusWriter = new IndexingStatusReaderWriter(accumuloReaderWriter);
+            batcher = MicroBatcher.getInstance(MetadataWorker.class.getName(), properties);
         } catch (final EzSecurityTokenException ex) {
             final String errMsg = "EzSecurity token error";
             logger.error(errMsg, ex);
@@ -92,10 +119,30 @@ public class MetadataWorker extends Worker<IngestedImage> {
         }
     }
 
+    /**
+     * Creates the pool running the extractions. Each outstanding extraction holds a permit, so callers block once the
+     * window is full.
+     */
+    void initializeExtractions(int maxInFlight) {
+        extractionPermits = new Semaphore(Math.max(1, maxInFlight));
+        extractionExecutor =
+                Executors.newFixedThreadPool(Math.max(1, maxInFlight), new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("metadata-extract-%d").build());
+    }
+
     @Override
     public void cleanup() {
         super.cleanup();
 
+        extractionExecutor.shutdown();
+        try {
+            if (!extractionExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Metadata extractions still outstanding at cleanup");
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
         try {
             accumuloReaderWriter.close();
         } catch (final IOException ex) {
@@ -117,24 +164,91 @@ public class MetadataWorker extends Worker<IngestedImage> {
 
     @Override
     public void process(Visibility visibility, IngestedImage ingestedImage) {
+        // Returns once the extraction is started, or once a slot is free for it
+        try {
+            batcher.add(new BatchedImage(visibility, ingestedImage), this);
+        } catch (final InterruptedException ex) {
+            logger.error("Interrupted while waiting for metadata batch", ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void processBatch(List<BatchedImage> batch) {
+        try {
+            final List<Image> images = imageCache.getAll(batch, accumuloReaderWriter);
+            for (int i = 0; i < batch.size(); i++) {
+                final BatchedImage batched = batch.get(i);
+                if (images.get(i) == null) {
+                    logger.error("Accumulo read of image {} returned null", batched.getImageId());
+                    continue;
+                }
+
+                submitExtraction(batched.getIngestedImage().getImageInfo().getVisibility(), batched.getImageId(),
+                        images.get(i));
+            }
+        } catch (final IOException ex) {
+            logger.error("Could not read images", ex);
+        } catch (final TException ex) {
+            logger.error("Thrift error", ex);
+        } catch (final InterruptedException ex) {
+            logger.error("Interrupted while waiting to extract metadata", ex);
+            Thread.currentThread().interrupt();
+        } catch (final Exception ex) {
+            logger.error("Unknown error", ex);
+        }
+    }
+
+    @Override
+    public void processImage(Visibility visibility, IngestedImageInfo imageInfo, Image image) {
+        try {
+            submitExtraction(imageInfo.getVisibility(), imageInfo.getImageId(), image);
+        } catch (final InterruptedException ex) {
+            logger.error("Interrupted while waiting to extract metadata", ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts the extraction for an image on the extraction executor, first waiting for a free slot if the configured
+     * number of extractions is already outstanding.
+     */
+    private void submitExtraction(final Visibility visibility, final String imageId, final Image image)
+            throws InterruptedException {
+        extractionPermits.acquire();
+        try {
+            extractionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        extractMetadata(visibility, imageId, image);
+                    } finally {
+                        extractionPermits.release();
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            extractionPermits.release();
+            logger.error("Could not submit metadata extraction for image " + imageId, ex);
+        }
+    }
+
+    /**
+     * Extracts the metadata of an image, upserts the resulting document and records the METADATA_EXTRACTED status.
+     * Each extraction checks out its own clients, since clients cannot be shared between threads, and concurrent
+     * extractions share the flushes of their status cells.
+     */
+    void extractMetadata(Visibility visibility, String imageId, Image image) {
         ImageMetadataExtractorService.Client imageMetadataExtractor = null;
         ImageIndexerService.Client imageIndexer = null;
         try {
-            final String imageId = ingestedImage.getImageInfo().getImageId();
             final byte[] indexBinary = hexToBytes(imageId);
-            final String authorizations = ingestedImage.getAuthorizations();
-            final Image image = accumuloReaderWriter.read(Image.class, indexBinary, authorizations);
-            if (image == null) {
-                logger.error("Accumulo read of image returned null");
-                return;
-            }
 
             logger.info("Extracting metadata from image {}", imageId);
 
             final String indexString = bytesToHex(indexBinary);
             final List<String> textTags = new ArrayList<>();
             final List<AreaTag> areaTags = new ArrayList<>();
-            final Visibility imageVis = ingestedImage.getImageInfo().getVisibility();
 
             imageMetadataExtractor =
                     pool.getClient(ImageMetadataExtractorConstants.SERVICE_NAME,
@@ -143,23 +257,23 @@ public class MetadataWorker extends Worker<IngestedImage> {
             final ImageMetadata metadata = imageMetadataExtractor.getMetadata(image);
             logger.info("Extracted metadata from image {}", imageId);
 
-            final IndexedImage toIndex = new IndexedImage(indexString, textTags, areaTags, imageVis, metadata);
-
-            imageIndexer =
-                    pool.getClient(ImageIndexerServiceConstants.SERVICE_NAME, ImageIndexerService.Client.class);
-
+            final IndexedImage toIndex = new IndexedImage(indexString, textTags, areaTags, visibility, metadata);
+            imageIndexer = pool.getClient(ImageIndexerServiceConstants.SERVICE_NAME, ImageIndexerService.Client.class);
             imageIndexer.upsertImage(toIndex, token);
             logger.info("Inserted metadata from image {} into index", imageId);
 
-            statusWriter.addCompletedStage(indexBinary, visibility.getFormalVisibility(), authorizations,
+            statusWriter.addCompletedStage(indexBinary, visibility.getFormalVisibility(),
                     IndexingStage.METADATA_EXTRACTED);
+            accumuloReaderWriter.flush();
+        } catch (final IOException ex) {
+            logger.error("Could not record status of indexed image " + imageId, ex);
+        } catch (final InsertFailed ex) {
+            logger.error("Insertion of image metadata into dataset failed for image " + imageId, ex);
         } catch (final InvalidImageException ex) {
             logger.error("Invalid or unsupported image given", ex);
-        } catch (final InsertFailed ex) {
-            logger.error("Insertion of image metadata into dataset failed", ex);
         } catch (final TException ex) {
             logger.error("Thrift error", ex);
-        } catch (final Exception ex) {
+        } catch (final RuntimeException ex) {
             logger.error("Unknown error", ex);
         } finally {
             if (imageMetadataExtractor != null) {
@@ -0,0 +1,173 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.pipeline;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import ezbake.common.properties.EzProperties;
+
+/**
+ * Groups items handed to workers by concurrent callers into batches of up to a maximum count, waiting up to a maximum
+ * delay for a batch to fill. Each call to {@link #add} returns only once the batch holding its item has been handled,
+ * so a message is never acknowledged before its writes are durable.
+ * <p>
+ * Frack hands messages to each worker instance one at a time, so batches can only form across the instances of a
+ * worker running on the same node. Workers therefore share one batcher per name on the node (see
+ * {@link #getInstance}), and a batch holds at most one item per instance; size batches to the worker parallelism of a
+ * node.
+ * <p>
+ * Batches are handled one at a time, outside the batcher's lock, by one of the calling threads with its own handler.
+ * The first caller to find no batch being handled waits until the batch is full or the delay has passed, then
+ * handles it. Items added meanwhile beyond the batch size form the next batch.
+ */
+final class MicroBatcher<T> {
+    interface BatchHandler<T> {
+        void processBatch(List<T> batch);
+    }
+
+    static final String BATCH_SIZE_KEY = "image.pipeline.batch.size";
+    static final String MAX_DELAY_MS_KEY = "image.pipeline.batch.maxDelayMs";
+
+    private static final Logger logger = getLogger(MicroBatcher.class);
+
+    private static final Map<String, MicroBatcher<?>> instances = new HashMap<>();
+
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+
+    // Guarded by this
+    private final LinkedList<T> pending = new LinkedList<>();
+    private long added;
+    private long handled;
+    private boolean handling;
+
+    /**
+     * @param maxBatchSize Most items in a batch. A size of 1 disables batching.
+     * @param maxDelayMs Longest time to wait for a batch to fill
+     */
+    MicroBatcher(int maxBatchSize, long maxDelayMs) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+    }
+
+    /**
+     * Gets the batcher shared by the workers of the given name on this node, sized from the
+     * {@code image.pipeline.batch.*} properties when first created. The default batch size of 1 disables batching.
+     */
+    @SuppressWarnings("unchecked")
+    static synchronized <T> MicroBatcher<T> getInstance(String name, Properties properties) {
+        MicroBatcher<T> batcher = (MicroBatcher<T>) instances.get(name);
+        if (batcher == null) {
+            final EzProperties ezProps = new EzProperties(properties, false);
+            batcher = new MicroBatcher<>(ezProps.getInteger(BATCH_SIZE_KEY, 1), ezProps.getLong(MAX_DELAY_MS_KEY, 50));
+            instances.put(name, batcher);
+        }
+
+        return batcher;
+    }
+
+    /**
+     * Adds an item and waits until the batch holding it has been handled. If the calling thread handles the batch,
+     * it does so with the given handler. A failure of the handler is logged and counts the batch as handled.
+     */
+    void add(T item, BatchHandler<T> handler) throws InterruptedException {
+        final long sequence;
+        synchronized (this) {
+            pending.add(item);
+            sequence = ++added;
+
+            // Wakes a caller waiting for the batch to fill
+            notifyAll();
+        }
+
+        while (true) {
+            final List<T> batch;
+            synchronized (this) {
+                while (handling && handled < sequence) {
+                    wait();
+                }
+
+                if (handled >= sequence) {
+                    return;
+                }
+
+                handling = true;
+                awaitFullBatch();
+                batch = takeBatch();
+            }
+
+            try {
+                handler.processBatch(batch);
+            } catch (final RuntimeException ex) {
+                logger.error("Could not process batch of " + batch.size() + " items", ex);
+            } finally {
+                synchronized (this) {
+                    handled += batch.size();
+                    handling = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of items added so far, for tests
+     */
+    synchronized long getAddedCount() {
+        return added;
+    }
+
+    /**
+     * Waits until a full batch is pending or the delay has passed. The pending items are handled even if the
+     * calling thread is interrupted, so they do not wait for another caller. Callers must hold the lock.
+     */
+    private void awaitFullBatch() {
+        final long deadline = System.nanoTime() + maxDelayNanos;
+        long remaining = maxDelayNanos;
+        while (pending.size() < maxBatchSize && remaining > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Removes the oldest pending items, up to the batch size, in the order they were added. Callers must hold the
+     * lock.
+     */
+    private List<T> takeBatch() {
+        final List<T> batch = new ArrayList<>();
+        while (!pending.isEmpty() && batch.size() < maxBatchSize) {
+            batch.add(pending.removeFirst());
+        }
+
+        return batch;
+    }
+}
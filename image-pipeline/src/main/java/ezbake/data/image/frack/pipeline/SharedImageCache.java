@@ -0,0 +1,195 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.pipeline;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import ezbake.data.image.frack.utilities.accumulo.AccumuloThriftReaderWriter;
+
+import ezbake.common.properties.EzProperties;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+
+/**
+ * Node-wide cache of recently ingested images shared by {@link ThumbnailWorker} and {@link MetadataWorker}, so an
+ * image broadcast to both is read from Accumulo only once per node. Concurrent requests for the same image wait for a
+ * single read, even when they miss the cache at the same time. Entries are keyed by image ID and authorizations so
+ * an image is only served with the authorizations it was read with.
+ */
+final class SharedImageCache {
+    static final String MAX_BYTES_KEY = "image.pipeline.cache.maxBytes";
+    static final String EXPIRE_SECONDS_KEY = "image.pipeline.cache.expireSeconds";
+
+    private static SharedImageCache instance;
+
+    private final Cache<String, Image> cache;
+
+    // Reads in progress by cache key, removed once their images are cached
+    private final ConcurrentMap<String, SettableFuture<Image>> loading = new ConcurrentHashMap<>();
+
+    SharedImageCache(long maxBytes, long expireSeconds) {
+        cache = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<String, Image>() {
+            @Override
+            public int weigh(String key, Image image) {
+                return image.isSetBlob() ? image.getBlob().length : 0;
+            }
+        }).expireAfterAccess(expireSeconds, TimeUnit.SECONDS).build();
+    }
+
+    static synchronized SharedImageCache getInstance(Properties properties) {
+        if (instance == null) {
+            final EzProperties ezProps = new EzProperties(properties, false);
+            final long maxBytes = ezProps.getLong(MAX_BYTES_KEY, 256L * 1024 * 1024);
+            final long expireSeconds = ezProps.getLong(EXPIRE_SECONDS_KEY, 120);
+            instance = new SharedImageCache(maxBytes, expireSeconds);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Gets the images for a batch of messages. Images neither cached nor being read by another caller are read with
+     * one batch scan per distinct set of authorizations in the batch and then cached. Images another caller is
+     * already reading are not read again; this call waits for that read instead.
+     *
+     * @return The images in the same order as the batch, with null for any image that does not exist
+     */
+    List<Image> getAll(List<BatchedImage> batch, AccumuloThriftReaderWriter accumuloReader) throws IOException,
+            TException {
+        final Map<String, Image> found = new HashMap<>();
+        final Map<String, ListenableFuture<Image>> waiting = new HashMap<>();
+        final Map<String, SettableFuture<Image>> loads = new HashMap<>();
+        final Map<String, List<byte[]>> missingByAuths = new HashMap<>();
+        for (final BatchedImage batched : batch) {
+            final String authorizations = batched.getIngestedImage().getAuthorizations();
+            final String cacheKey = getCacheKey(batched.getImageId(), authorizations);
+            if (found.containsKey(cacheKey) || waiting.containsKey(cacheKey) || loads.containsKey(cacheKey)) {
+                continue;
+            }
+
+            Image image = cache.getIfPresent(cacheKey);
+            if (image != null) {
+                found.put(cacheKey, image);
+                continue;
+            }
+
+            final SettableFuture<Image> load = SettableFuture.create();
+            final ListenableFuture<Image> running = loading.putIfAbsent(cacheKey, load);
+            if (running != null) {
+                waiting.put(cacheKey, running);
+                continue;
+            }
+
+            // The image may have been cached by a read that finished since the first check
+            image = cache.getIfPresent(cacheKey);
+            if (image != null) {
+                loading.remove(cacheKey, load);
+                load.set(image);
+                found.put(cacheKey, image);
+                continue;
+            }
+
+            loads.put(cacheKey, load);
+            List<byte[]> missing = missingByAuths.get(authorizations);
+            if (missing == null) {
+                missing = new ArrayList<>();
+                missingByAuths.put(authorizations, missing);
+            }
+
+            missing.add(hexToBytes(batched.getImageId()));
+        }
+
+        try {
+            for (final Map.Entry<String, List<byte[]>> missing : missingByAuths.entrySet()) {
+                final Map<String, Image> images =
+                        accumuloReader.readAll(Image.class, missing.getValue(), missing.getKey());
+                for (final Map.Entry<String, Image> image : images.entrySet()) {
+                    final String cacheKey = getCacheKey(image.getKey(), missing.getKey());
+                    cache.put(cacheKey, image.getValue());
+                    found.put(cacheKey, image.getValue());
+                }
+            }
+
+            // Images that do not exist complete their waiters with null
+            for (final Map.Entry<String, SettableFuture<Image>> load : loads.entrySet()) {
+                loading.remove(load.getKey(), load.getValue());
+                load.getValue().set(found.get(load.getKey()));
+            }
+        } catch (final IOException | TException | RuntimeException ex) {
+            for (final Map.Entry<String, SettableFuture<Image>> load : loads.entrySet()) {
+                loading.remove(load.getKey(), load.getValue());
+                load.getValue().setException(ex);
+            }
+
+            throw ex;
+        }
+
+        for (final Map.Entry<String, ListenableFuture<Image>> running : waiting.entrySet()) {
+            found.put(running.getKey(), await(running.getValue()));
+        }
+
+        final List<Image> images = new ArrayList<>(batch.size());
+        for (final BatchedImage batched : batch) {
+            images.add(found.get(getCacheKey(batched.getImageId(), batched.getIngestedImage().getAuthorizations())));
+        }
+
+        return images;
+    }
+
+    /**
+     * Waits for the read of another caller, rethrowing its failure.
+     */
+    private static Image await(ListenableFuture<Image> running) throws IOException, TException {
+        try {
+            return Uninterruptibles.getUninterruptibly(running);
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof TException) {
+                throw (TException) ex.getCause();
+            }
+
+            throw new IOException("Could not read image", ex.getCause());
+        }
+    }
+
+    /**
+     * Image IDs are normalized through their row ID bytes so they match the hex row IDs returned by batch scans.
+     */
+    private static String getCacheKey(String imageId, String authorizations) {
+        return bytesToHex(hexToBytes(imageId)) + '|' + authorizations;
+    }
+}
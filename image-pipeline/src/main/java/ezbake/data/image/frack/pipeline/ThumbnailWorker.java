@@ -16,10 +16,13 @@ package ezbake.data.image.frack.pipeline;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
-import static ezbake.data.image.frack.utilities.ImageUtils.createThumbnail;
+import static ezbake.data.image.frack.utilities.ImageUtils.createThumbnails;
 import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+import static ezbake.data.image.frack.utilities.accumulo.AccumuloStoreConfig.INGEST_PROFILE;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.accumulo.core.client.AccumuloException;
@@ -38,16 +41,20 @@ import ezbake.services.extractor.imagemetadata.thrift.Image;
 import ezbake.services.extractor.imagemetadata.thrift.InvalidImageException;
 import ezbake.services.indexing.image.thrift.IndexingStage;
 import ezbake.services.indexing.image.thrift.IngestedImage;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
 import ezbake.services.indexing.image.thrift.Thumbnail;
 import ezbake.services.indexing.image.thrift.ThumbnailSize;
 
-public class ThumbnailWorker extends Worker<IngestedImage> {
+public class ThumbnailWorker extends Worker<IngestedImage> implements InlineImageProcessor,
+        MicroBatcher.BatchHandler<BatchedImage> {
     private static final long serialVersionUID = -6322323192743295953L;
     private static final Logger logger = getLogger(ThumbnailWorker.class);
 
     private String defaultType;
     private AccumuloThriftReaderWriter accumuloReaderWriter;
     private IndexingStatusReaderWriter statusWriter;
+    private SharedImageCache imageCache;
+    private MicroBatcher<BatchedImage> batcher;
 
     public ThumbnailWorker() {
         super(IngestedImage.class);
@@ -56,10 +63,11 @@ public class ThumbnailWorker extends Worker<IngestedImage> {
     @Override
     public void initialize(Properties properties) {
         super.initialize(properties);
+        imageCache = SharedImageCache.getInstance(properties);
         defaultType = properties.getProperty("thumbnail.type", "jpg");
 
         try {
-            accumuloReaderWriter = new AccumuloThriftReaderWriter(properties);
+            accumuloReaderWriter = new AccumuloThriftReaderWriter(properties, INGEST_PROFILE);
         } catch (AccumuloException | AccumuloSecurityException | TableExistsException | TableNotFoundException ex) {
             final String errMsg = "Accumulo error";
             logger.error(errMsg, ex);
@@ -67,6 +75,7 @@ public class ThumbnailWorker extends Worker<IngestedImage> {
         }
 
         statusWriter = new IndexingStatusReaderWriter(accumuloReaderWriter);
+        batcher = MicroBatcher.getInstance(ThumbnailWorker.class.getName(), properties);
     }
 
     @Override
@@ -82,27 +91,72 @@ public class ThumbnailWorker extends Worker<IngestedImage> {
 
     @Override
     public void process(Visibility visibility, IngestedImage ingestedImage) {
+        // Returns once the thumbnails are flushed, so the message is only acknowledged after that
         try {
-            final String imageId = ingestedImage.getImageInfo().getImageId();
-            final byte[] rowId = hexToBytes(imageId);
-            final String authorizations = ingestedImage.getAuthorizations();
-            final Image image = accumuloReaderWriter.read(Image.class, rowId, authorizations);
-            if (image == null) {
-                logger.error("Accumulo read of image returned null");
-                return;
+            batcher.add(new BatchedImage(visibility, ingestedImage), this);
+        } catch (final InterruptedException ex) {
+            logger.error("Interrupted while waiting for thumbnail batch", ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void processBatch(List<BatchedImage> batch) {
+        try {
+            final List<Image> images = imageCache.getAll(batch, accumuloReaderWriter);
+            for (int i = 0; i < batch.size(); i++) {
+                final BatchedImage batched = batch.get(i);
+                if (images.get(i) == null) {
+                    logger.error("Accumulo read of image {} returned null", batched.getImageId());
+                    continue;
+                }
+
+                writeThumbnails(batched.getVisibility(), batched.getImageId(), images.get(i));
             }
 
-            final String fileName = ingestedImage.getImageInfo().getFileName();
+            // One flush covers the thumbnails and status cells of the whole batch
+            accumuloReaderWriter.flush();
+            logger.info("Wrote thumbnails for batch of {} images", batch.size());
+        } catch (final IOException ex) {
+            logger.error("Error completing stage", ex);
+        } catch (final TException ex) {
+            logger.error("Thrift error", ex);
+        }
+    }
+
+    @Override
+    public void processImage(Visibility visibility, IngestedImageInfo imageInfo, Image image) {
+        final String imageId = imageInfo.getImageId();
+        if (writeThumbnails(visibility, imageId, image)) {
+            try {
+                // Concurrent inline images share the same flush of the batch writer
+                accumuloReaderWriter.flush();
+                logger.info("Wrote thumbnails for image {}", imageId);
+            } catch (final IOException ex) {
+                logger.error("Error completing stage", ex);
+            }
+        }
+    }
+
+    /**
+     * Queues the thumbnails and status update for an image without flushing them.
+     *
+     * @return true if the writes were queued
+     */
+    private boolean writeThumbnails(Visibility visibility, String imageId, Image image) {
+        try {
+            final byte[] rowId = hexToBytes(imageId);
+            final String fileName = image.getFileName();
             final String type = fileName == null ? defaultType : fileName.substring(fileName.lastIndexOf('.') + 1);
 
-            for (final ThumbnailSize thumbSize : ThumbnailSize.values()) {
-                final Thumbnail thumbnail = createThumbnail(image, thumbSize, type);
-                accumuloReaderWriter.write(thumbnail, rowId, visibility.getFormalVisibility(), thumbSize.name());
-                logger.info("Wrote thumbnail of size {} for image {}", thumbSize, imageId);
+            final Map<ThumbnailSize, Thumbnail> thumbnails = createThumbnails(image, type);
+            for (final Map.Entry<ThumbnailSize, Thumbnail> thumbnail : thumbnails.entrySet()) {
+                accumuloReaderWriter.writeAsync(thumbnail.getValue(), rowId, visibility.getFormalVisibility(),
+                        thumbnail.getKey().name());
             }
 
-            statusWriter.addCompletedStage(rowId, visibility.getFormalVisibility(), authorizations,
-                    IndexingStage.THUMBNAILS_GENERATED);
+            statusWriter.addCompletedStage(rowId, visibility.getFormalVisibility(), IndexingStage.THUMBNAILS_GENERATED);
+            return true;
         } catch (final IOException ex) {
             logger.error("Error completing stage", ex);
         } catch (final InvalidImageException ex) {
@@ -110,5 +164,7 @@ public class ThumbnailWorker extends Worker<IngestedImage> {
         } catch (final TException ex) {
             logger.error("Thrift error", ex);
         }
+
+        return false;
     }
 }
@@ -0,0 +1,106 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
+
+public class MetadataWorkerTest {
+    private final Visibility visibility = new Visibility().setFormalVisibility("U");
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    @Test
+    public void testExtractionsOverlap() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final MetadataWorker worker = createWorker(started);
+        worker.initializeExtractions(2);
+
+        // Both calls return while their extractions are still running
+        worker.processImage(visibility, createImageInfo("01"), new Image());
+        worker.processImage(visibility, createImageInfo("02"), new Image());
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+
+        release.countDown();
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final MetadataWorker worker = createWorker(started);
+        worker.initializeExtractions(1);
+
+        worker.processImage(visibility, createImageInfo("01"), new Image());
+        final Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                worker.processImage(visibility, createImageInfo("02"), new Image());
+            }
+        });
+
+        second.start();
+
+        // The second call waits for a free slot rather than starting a second extraction
+        second.join(200);
+        assertTrue(second.isAlive());
+        assertEquals(1, running.get());
+
+        release.countDown();
+        second.join();
+        assertFalse(second.isAlive());
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+    }
+
+    private MetadataWorker createWorker(final CountDownLatch started) {
+        return new MetadataWorker() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            void extractMetadata(Visibility imageVisibility, String imageId, Image image) {
+                final int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    private IngestedImageInfo createImageInfo(String imageId) {
+        return new IngestedImageInfo().setImageId(imageId).setVisibility(visibility);
+    }
+}
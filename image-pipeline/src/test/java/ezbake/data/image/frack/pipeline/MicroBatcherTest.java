@@ -0,0 +1,122 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class MicroBatcherTest {
+    private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+
+    private final MicroBatcher.BatchHandler<String> recorder = new MicroBatcher.BatchHandler<String>() {
+        @Override
+        public void processBatch(List<String> batch) {
+            batches.add(new ArrayList<>(batch));
+        }
+    };
+
+    @Test
+    public void testSizeLimitAndOrdering() throws Exception {
+        final MicroBatcher<String> batcher = new MicroBatcher<>(2, 2000);
+        final Thread first = startAdd(batcher, "a", recorder);
+        awaitAdded(batcher, 1);
+        final Thread second = startAdd(batcher, "b", recorder);
+        awaitAdded(batcher, 2);
+        final Thread third = startAdd(batcher, "c", recorder);
+
+        first.join();
+        second.join();
+        third.join();
+
+        // The first two items fill a batch at once, the third is handled alone once the delay has passed
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c")), batches);
+    }
+
+    @Test
+    public void testDelayWindow() throws Exception {
+        final MicroBatcher<String> batcher = new MicroBatcher<>(10, 200);
+        final long start = System.currentTimeMillis();
+        batcher.add("a", recorder);
+
+        // A lone item waits for the batch to fill, and is handled before add returns
+        assertTrue(System.currentTimeMillis() - start >= 150);
+        assertEquals(Arrays.asList(Arrays.asList("a")), batches);
+    }
+
+    @Test
+    public void testBatchingDisabled() throws Exception {
+        final MicroBatcher<String> batcher = new MicroBatcher<>(1, 60000);
+        final long start = System.currentTimeMillis();
+        batcher.add("a", recorder);
+        batcher.add("b", recorder);
+
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("b")), batches);
+    }
+
+    @Test
+    public void testHandlerFailure() throws Exception {
+        final MicroBatcher<String> batcher = new MicroBatcher<>(1, 0);
+        batcher.add("a", new MicroBatcher.BatchHandler<String>() {
+            @Override
+            public void processBatch(List<String> batch) {
+                throw new IllegalStateException("Failed batch");
+            }
+        });
+
+        // A failed batch counts as handled and does not stop later batches
+        batcher.add("b", recorder);
+        assertEquals(Arrays.asList(Arrays.asList("b")), batches);
+    }
+
+    @Test
+    public void testSharedInstance() {
+        final Properties properties = new Properties();
+        final MicroBatcher<String> batcher = MicroBatcher.getInstance("shared", properties);
+        assertSame(batcher, MicroBatcher.<String>getInstance("shared", properties));
+    }
+
+    private static Thread startAdd(final MicroBatcher<String> batcher, final String item,
+            final MicroBatcher.BatchHandler<String> handler) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    batcher.add(item, handler);
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitAdded(MicroBatcher<String> batcher, long count) throws InterruptedException {
+        while (batcher.getAddedCount() < count) {
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.pipeline;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ezbake.data.image.frack.utilities.accumulo.AccumuloThriftReaderWriter;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IngestedImage;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
+
+public class SharedImageCacheTest {
+    private static final String IMAGE_ID = "0123456789abcdef";
+
+    private final AtomicInteger scans = new AtomicInteger();
+    private final CountDownLatch scanning = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private AccumuloThriftReaderWriter accumuloReader;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+
+        // Counts the scans and holds each one until released, so a second reader arrives while the first is scanning
+        accumuloReader = new AccumuloThriftReaderWriter(new MockInstance("mock"), config) {
+            @Override
+            public <T extends TBase<?, ?>> Map<String, T> readAll(Class<T> clazz, Collection<byte[]> rowIds,
+                    String authorization) throws IOException, TException {
+                scans.incrementAndGet();
+                scanning.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return super.readAll(clazz, rowIds, authorization);
+            }
+        };
+
+        final Image image = new Image();
+        image.setFileName("test.jpg");
+        image.setBlob(new byte[] {1, 2, 3});
+        accumuloReader.write(image, hexToBytes(IMAGE_ID), "U");
+
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        accumuloReader.close();
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneScan() throws Exception {
+        final SharedImageCache cache = new SharedImageCache(1024 * 1024, 60);
+        final Future<List<Image>> first = executor.submit(getAll(cache, IMAGE_ID));
+        scanning.await(10, TimeUnit.SECONDS);
+
+        final Future<List<Image>> second = executor.submit(getAll(cache, IMAGE_ID));
+
+        // Gives the second reader time to miss the cache and join the running scan
+        Thread.sleep(200);
+        release.countDown();
+
+        assertArrayEquals(new byte[] {1, 2, 3}, first.get().get(0).getBlob());
+        assertArrayEquals(new byte[] {1, 2, 3}, second.get().get(0).getBlob());
+        assertEquals(1, scans.get());
+
+        // Later reads are served from the cache
+        assertNotNull(getAll(cache, IMAGE_ID).call().get(0));
+        assertEquals(1, scans.get());
+    }
+
+    @Test
+    public void testMissingImage() throws Exception {
+        release.countDown();
+        final SharedImageCache cache = new SharedImageCache(1024 * 1024, 60);
+        final List<Image> images = getAll(cache, IMAGE_ID, "fedcba9876543210").call();
+        assertNotNull(images.get(0));
+        assertNull(images.get(1));
+    }
+
+    private Callable<List<Image>> getAll(final SharedImageCache cache, final String... imageIds) {
+        return new Callable<List<Image>>() {
+            @Override
+            public List<Image> call() throws Exception {
+                final BatchedImage[] batch = new BatchedImage[imageIds.length];
+                for (int i = 0; i < imageIds.length; i++) {
+                    final Visibility visibility = new Visibility().setFormalVisibility("U");
+                    final IngestedImageInfo imageInfo =
+                            new IngestedImageInfo().setImageId(imageIds[i]).setVisibility(visibility);
+                    batch[i] = new BatchedImage(visibility, new IngestedImage().setImageInfo(imageInfo)
+                            .setAuthorizations("U"));
+                }
+
+                return cache.getAll(Arrays.asList(batch), accumuloReader);
+            }
+        };
+    }
+}
@@ -0,0 +1,303 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.Visibility;
+import ezbake.common.properties.EzProperties;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IndexingStatus;
+import ezbake.services.indexing.image.thrift.InsertFailed;
+import ezbake.services.indexing.image.thrift.Thumbnail;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+/**
+ * Image store that keeps recently read thumbnails in memory in front of another store. The cache is bounded by the
+ * total bytes of the cached thumbnails. Entries are keyed by image ID, thumbnail size and the full set of
+ * authorizations they were read with, so a thumbnail is only ever served to callers with exactly those
+ * authorizations. All other calls go straight to the underlying store.
+ * <p>
+ * Adds and deletes through this store drop the cached thumbnails of the image. A read that started before such a
+ * change does not cache what it read, and entries expire after a while, so deletes made through other nodes are
+ * seen eventually.
+ * <p>
+ * In front of an {@code AccumuloImageStore} with its off-heap cache enabled, this cache is the small first level:
+ * hits here skip deserialization, while the larger off-heap cache below keeps the serialized bytes of many more
+ * thumbnails without adding to garbage collection.
+ */
+public class CachingImageBinaryStore implements ImageBinaryStore {
+    /**
+     * Total bytes of thumbnails to keep in the cache. Defaults to 128 MB.
+     */
+    public static final String MAX_BYTES_KEY = "image.store.thumbnailCache.maxBytes";
+
+    /**
+     * Milliseconds a thumbnail stays cached after it was read. Defaults to 10 minutes.
+     */
+    public static final String EXPIRE_AFTER_WRITE_MS_KEY = "image.store.thumbnailCache.expireAfterWriteMs";
+
+    private static final int GENERATION_STRIPES = 256;
+
+    private static final class ThumbnailKey {
+        private final String imageId;
+        private final ThumbnailSize size;
+        private final Set<String> auths;
+
+        private ThumbnailKey(String imageId, ThumbnailSize size, Authorizations auths) {
+            // Normalize the hex so IDs differing only in case share an entry
+            this.imageId = bytesToHex(hexToBytes(imageId));
+            this.size = size;
+            this.auths = Collections.unmodifiableSet(new TreeSet<>(auths.getFormalAuthorizations()));
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(imageId, size, auths);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ThumbnailKey)) {
+                return false;
+            }
+
+            final ThumbnailKey other = (ThumbnailKey) obj;
+            return imageId.equals(other.imageId) && size == other.size && auths.equals(other.auths);
+        }
+    }
+
+    private final ImageBinaryStore store;
+    private final Cache<ThumbnailKey, Thumbnail> thumbnails;
+
+    /**
+     * Cached keys of each image, so invalidating an image does not walk the whole cache. Guarded by itself.
+     */
+    private final Map<String, Set<ThumbnailKey>> keysByImage = new HashMap<>();
+
+    /**
+     * Bumped whenever an image hashing to the stripe is invalidated, so a read that overlapped the invalidation
+     * drops what it cached.
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    public CachingImageBinaryStore(ImageBinaryStore store, Properties config) {
+        this(store, new EzProperties(config, false).getLong(MAX_BYTES_KEY, 128L * 1024 * 1024),
+                new EzProperties(config, false).getLong(EXPIRE_AFTER_WRITE_MS_KEY, TimeUnit.MINUTES.toMillis(10)));
+    }
+
+    public CachingImageBinaryStore(ImageBinaryStore store, long maxBytes) {
+        this(store, maxBytes, TimeUnit.MINUTES.toMillis(10));
+    }
+
+    public CachingImageBinaryStore(ImageBinaryStore store, long maxBytes, long expireAfterWriteMs) {
+        this.store = store;
+        thumbnails =
+                CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<ThumbnailKey, Thumbnail>() {
+                    @Override
+                    public int weigh(ThumbnailKey key, Thumbnail thumbnail) {
+                        return thumbnail.isSetThumbnailBytes() ? thumbnail.getThumbnailBytes().length : 0;
+                    }
+                }).removalListener(new RemovalListener<ThumbnailKey, Thumbnail>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<ThumbnailKey, Thumbnail> notification) {
+                        unindex(notification.getKey());
+                    }
+                }).expireAfterWrite(expireAfterWriteMs, TimeUnit.MILLISECONDS).recordStats().build();
+    }
+
+    /**
+     * @return Hit, miss and eviction counts of the thumbnail cache
+     */
+    public CacheStats getThumbnailCacheStats() {
+        return thumbnails.stats();
+    }
+
+    @Override
+    public boolean ping() {
+        return store.ping();
+    }
+
+    @Override
+    public void addImage(Image image, String imageId, Visibility visibility, String... types) throws InsertFailed {
+        // Re-adding an image rewrites its thumbnails
+        invalidate(imageId);
+        store.addImage(image, imageId, visibility, types);
+    }
+
+    @Override
+    public Image getImage(String imageId, Authorizations auths) {
+        return store.getImage(imageId, auths);
+    }
+
+    @Override
+    public Map<String, Image> getImages(Collection<String> imageIds, Authorizations auths) {
+        return store.getImages(imageIds, auths);
+    }
+
+    @Override
+    public void deleteImage(String imageId, Authorizations auths) {
+        store.deleteImage(imageId, auths);
+        invalidate(imageId);
+    }
+
+    @Override
+    public Thumbnail getThumbnail(String imageId, Authorizations auths, ThumbnailSize size) {
+        final ThumbnailKey key = new ThumbnailKey(imageId, size, auths);
+        Thumbnail thumbnail = thumbnails.getIfPresent(key);
+        if (thumbnail == null) {
+            final long generation = generations.get(stripe(key.imageId));
+            thumbnail = store.getThumbnail(imageId, auths, size);
+            if (thumbnail != null) {
+                cache(key, thumbnail, generation);
+            }
+        }
+
+        return thumbnail;
+    }
+
+    @Override
+    public Map<String, Thumbnail> getThumbnails(Collection<String> imageIds, Authorizations auths,
+            ThumbnailSize size) {
+        final Map<String, Thumbnail> found = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        final Map<String, Long> missingGenerations = new HashMap<>();
+        for (final String imageId : imageIds) {
+            final ThumbnailKey key = new ThumbnailKey(imageId, size, auths);
+            final Thumbnail thumbnail = thumbnails.getIfPresent(key);
+            if (thumbnail != null) {
+                found.put(imageId, thumbnail);
+            } else {
+                missing.add(imageId);
+                missingGenerations.put(imageId, generations.get(stripe(key.imageId)));
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            final Map<String, Thumbnail> read = store.getThumbnails(missing, auths, size);
+            for (final Map.Entry<String, Thumbnail> thumbnail : read.entrySet()) {
+                final Long generation = missingGenerations.get(thumbnail.getKey());
+                if (generation != null) {
+                    cache(new ThumbnailKey(thumbnail.getKey(), size, auths), thumbnail.getValue(), generation);
+                }
+            }
+
+            found.putAll(read);
+        }
+
+        return found;
+    }
+
+    @Override
+    public IndexingStatus getIndexingStatus(String imageId, Authorizations auths) {
+        return store.getIndexingStatus(imageId, auths);
+    }
+
+    @Override
+    public void close() throws IOException {
+        thumbnails.invalidateAll();
+        store.close();
+    }
+
+    /**
+     * Caches a thumbnail read from the store, unless its image was invalidated since the read started.
+     *
+     * @param generation Generation of the image's stripe before the read started
+     */
+    private void cache(ThumbnailKey key, Thumbnail thumbnail, long generation) {
+        thumbnails.put(key, thumbnail);
+        synchronized (keysByImage) {
+            Set<ThumbnailKey> keys = keysByImage.get(key.imageId);
+            if (keys == null) {
+                keys = new HashSet<>();
+                keysByImage.put(key.imageId, keys);
+            }
+
+            keys.add(key);
+        }
+
+        // An invalidation that bumped the generation after this check will find the key in the index
+        if (generations.get(stripe(key.imageId)) != generation) {
+            thumbnails.invalidate(key);
+        }
+    }
+
+    /**
+     * Drops every cached thumbnail of an image, whatever its size or authorizations.
+     */
+    private void invalidate(String imageId) {
+        final String normalizedId = bytesToHex(hexToBytes(imageId));
+        generations.incrementAndGet(stripe(normalizedId));
+
+        final List<ThumbnailKey> keys;
+        synchronized (keysByImage) {
+            final Set<ThumbnailKey> indexed = keysByImage.get(normalizedId);
+            if (indexed == null) {
+                return;
+            }
+
+            keys = new ArrayList<>(indexed);
+        }
+
+        thumbnails.invalidateAll(keys);
+    }
+
+    /**
+     * Removes a key that left the cache from the index. A key that was cached again in the meantime stays indexed.
+     */
+    private void unindex(ThumbnailKey key) {
+        synchronized (keysByImage) {
+            if (thumbnails.asMap().containsKey(key)) {
+                return;
+            }
+
+            final Set<ThumbnailKey> keys = keysByImage.get(key.imageId);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    keysByImage.remove(key.imageId);
+                }
+            }
+        }
+    }
+
+    private static int stripe(String normalizedId) {
+        return (normalizedId.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+}
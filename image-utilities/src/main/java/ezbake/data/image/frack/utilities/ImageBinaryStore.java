@@ -15,6 +15,8 @@
 package ezbake.data.image.frack.utilities;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 
 import ezbake.base.thrift.Authorizations;
 import ezbake.base.thrift.Visibility;
@@ -31,10 +33,14 @@ public interface ImageBinaryStore {
 
     Image getImage(String imageId, Authorizations auths);
 
+    Map<String, Image> getImages(Collection<String> imageIds, Authorizations auths);
+
     void deleteImage(String imageId, Authorizations auths);
 
     Thumbnail getThumbnail(String imageId, Authorizations auths, ThumbnailSize size);
 
+    Map<String, Thumbnail> getThumbnails(Collection<String> imageIds, Authorizations auths, ThumbnailSize size);
+
     IndexingStatus getIndexingStatus(String imageId, Authorizations auths);
 
     void close() throws IOException;
@@ -23,9 +23,22 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import javax.activation.FileTypeMap;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import org.imgscalr.Scalr;
 import org.slf4j.Logger;
@@ -39,11 +52,57 @@ import ezbake.services.indexing.image.thrift.ThumbnailSize;
 public class ImageUtils {
     private static final Logger logger = getLogger(ImageUtils.class);
 
+    private static final short TIFF_MAGIC = 42;
+    private static final int TIFF_NEW_SUBFILE_TYPE_TAG = 254;
+    private static final short TIFF_SHORT_TYPE = 3;
+    private static final long TIFF_REDUCED_RESOLUTION = 1;
+    private static final int MAX_TIFF_PAGES = 1024;
+
     public static BufferedImage getBufferedImage(Image image) throws IOException {
         final InputStream imageStream = new ByteArrayInputStream(image.getBlob());
         return ImageIO.read(imageStream);
     }
 
+    /**
+     * Decodes an image at a reduced resolution that is still at least {@code minDimension} pixels on its longest
+     * side. The image header is read first to find the full dimensions, then the raster is decoded with source
+     * subsampling (or from a smaller TIFF page when one is large enough) so that large photos never have to be
+     * decoded at full resolution when only a small version is needed.
+     *
+     * @param image Image to decode
+     * @param minDimension Minimum size of the longest side of the decoded image
+     * @return Decoded image or null if no registered reader supports the image
+     * @throws IOException If the image could not be decoded
+     */
+    public static BufferedImage getBufferedImage(Image image, int minDimension) throws IOException {
+        final InputStream blobStream = new ByteArrayInputStream(image.getBlob());
+        try (ImageInputStream imageStream = ImageIO.createImageInputStream(blobStream)) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageStream, false, true);
+
+                final int imageIndex = getReducedImageIndex(reader, image.getBlob(), minDimension);
+                final int maxImageDim = Math.max(reader.getWidth(imageIndex), reader.getHeight(imageIndex));
+                final int subsampling = Math.max(1, maxImageDim / minDimension);
+
+                final ImageReadParam param = reader.getDefaultReadParam();
+                if (subsampling > 1) {
+                    logger.debug("Decoding image {} with subsampling {}", image.getFileName(), subsampling);
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+
+                return reader.read(imageIndex, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
     public static byte[] getBytesFromBufferedImage(BufferedImage bufImage, String outputFormat) throws IOException {
         try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
             ImageIO.write(bufImage, outputFormat, out);
@@ -53,7 +112,23 @@ public class ImageUtils {
     }
 
     public static Dimensions getDimensions(Image image) throws IOException {
-        return getDimensions(getBufferedImage(image));
+        final InputStream blobStream = new ByteArrayInputStream(image.getBlob());
+        try (ImageInputStream imageStream = ImageIO.createImageInputStream(blobStream)) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageStream, true, true);
+                final int width = reader.getWidth(0);
+                final int height = reader.getHeight(0);
+                return new Dimensions(width, height, (double) width / height);
+            } finally {
+                reader.dispose();
+            }
+        }
     }
 
     public static Dimensions getDimensions(BufferedImage bufImage) {
@@ -88,7 +163,52 @@ public class ImageUtils {
 
     public static Thumbnail createThumbnail(Image source, ThumbnailSize size, String outputFormat)
             throws IOException, InvalidImageException {
-        final BufferedImage bufferedImage = getBufferedImage(source);
+        final BufferedImage bufferedImage = getThumbnailSource(source, size);
+        final int actualMaxSize = getMaxScaledDimension(bufferedImage, getMaxThumbnailSize(size));
+
+        final BufferedImage tbImage =
+                Scalr.resize(bufferedImage, Scalr.Method.BALANCED, Scalr.Mode.AUTOMATIC, actualMaxSize);
+
+        return toThumbnail(tbImage, outputFormat);
+    }
+
+    /**
+     * Creates thumbnails of every {@link ThumbnailSize} while decoding the source image only once. Thumbnails are
+     * scaled from largest to smallest, each one resized from the previous result rather than from the original.
+     *
+     * @param source Image to create thumbnails from
+     * @param outputFormat Image format of the thumbnails (e.g. jpg, png)
+     * @return Thumbnails keyed by size
+     * @throws IOException If the image could not be decoded or the thumbnails could not be encoded
+     * @throws InvalidImageException If the image type is not supported for thumbnail creation
+     */
+    public static Map<ThumbnailSize, Thumbnail> createThumbnails(Image source, String outputFormat)
+            throws IOException, InvalidImageException {
+        final List<ThumbnailSize> sizes = Arrays.asList(ThumbnailSize.values());
+        Collections.sort(sizes, new Comparator<ThumbnailSize>() {
+            @Override
+            public int compare(ThumbnailSize size1, ThumbnailSize size2) {
+                return Integer.compare(getMaxThumbnailSize(size2), getMaxThumbnailSize(size1));
+            }
+        });
+
+        BufferedImage scaleFrom = getThumbnailSource(source, sizes.get(0));
+        final Map<ThumbnailSize, Thumbnail> thumbnails = new EnumMap<>(ThumbnailSize.class);
+        for (final ThumbnailSize size : sizes) {
+            final int actualMaxSize = getMaxScaledDimension(scaleFrom, getMaxThumbnailSize(size));
+            final BufferedImage tbImage =
+                    Scalr.resize(scaleFrom, Scalr.Method.BALANCED, Scalr.Mode.AUTOMATIC, actualMaxSize);
+
+            thumbnails.put(size, toThumbnail(tbImage, outputFormat));
+            scaleFrom = tbImage;
+        }
+
+        return thumbnails;
+    }
+
+    private static BufferedImage getThumbnailSource(Image source, ThumbnailSize size) throws IOException,
+            InvalidImageException {
+        final BufferedImage bufferedImage = getBufferedImage(source, getMaxThumbnailSize(size));
         if (bufferedImage == null) {
             String errMsg;
             if (source.isSetMimeType()) {
@@ -100,11 +220,86 @@ public class ImageUtils {
             throw new InvalidImageException(errMsg);
         }
 
-        final int actualMaxSize = getMaxScaledDimension(bufferedImage, getMaxThumbnailSize(size));
+        return bufferedImage;
+    }
 
-        final BufferedImage tbImage =
-                Scalr.resize(bufferedImage, Scalr.Method.BALANCED, Scalr.Mode.AUTOMATIC, actualMaxSize);
+    /**
+     * Multi-page TIFFs often store reduced-resolution copies (pyramids) of the main image. Returns the index of the
+     * smallest such page still covering the requested dimension, or 0 when the image does not have such pages. Only
+     * pages marked as reduced-resolution in their NewSubfileType are considered, since the other pages of a
+     * multi-page TIFF are separate images, such as the pages of a scanned document.
+     */
+    private static int getReducedImageIndex(ImageReader reader, byte[] blob, int minDimension) throws IOException {
+        if (!"tif".equalsIgnoreCase(reader.getFormatName()) && !"tiff".equalsIgnoreCase(reader.getFormatName())) {
+            return 0;
+        }
+
+        final List<Long> subfileTypes = getTiffSubfileTypes(blob);
+        final int numImages = Math.min(reader.getNumImages(true), subfileTypes.size());
+        final double aspectRatio = reader.getAspectRatio(0);
+
+        int bestIndex = 0;
+        int bestDim = Math.max(reader.getWidth(0), reader.getHeight(0));
+        for (int idx = 1; idx < numImages; idx++) {
+            if ((subfileTypes.get(idx) & TIFF_REDUCED_RESOLUTION) == 0) {
+                continue;
+            }
+
+            final int pageDim = Math.max(reader.getWidth(idx), reader.getHeight(idx));
+            final boolean sameAspect = Math.abs(reader.getAspectRatio(idx) - aspectRatio) < 0.01;
+            if (sameAspect && pageDim >= minDimension && pageDim < bestDim) {
+                bestIndex = idx;
+                bestDim = pageDim;
+            }
+        }
+
+        return bestIndex;
+    }
+
+    /**
+     * Reads the NewSubfileType of each page of a TIFF from its image file directories. Pages without the field get
+     * 0, the default of the TIFF specification. Returns no pages for files that are not classic TIFFs.
+     */
+    private static List<Long> getTiffSubfileTypes(byte[] tiff) {
+        final List<Long> subfileTypes = new ArrayList<>();
+        if (tiff.length < 8) {
+            return subfileTypes;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(tiff);
+        buffer.order(tiff[0] == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        if (buffer.getShort(2) != TIFF_MAGIC) {
+            return subfileTypes;
+        }
+
+        long offset = buffer.getInt(4) & 0xFFFFFFFFL;
+
+        // The page count is bounded since a malformed file may link its directories in a loop
+        while (offset > 0 && offset + 2 <= tiff.length && subfileTypes.size() < MAX_TIFF_PAGES) {
+            final int entryCount = buffer.getShort((int) offset) & 0xFFFF;
+            final long nextOffset = offset + 2 + 12L * entryCount;
+            if (nextOffset + 4 > tiff.length) {
+                break;
+            }
+
+            long subfileType = 0;
+            for (int idx = 0; idx < entryCount; idx++) {
+                final int entry = (int) offset + 2 + 12 * idx;
+                if ((buffer.getShort(entry) & 0xFFFF) == TIFF_NEW_SUBFILE_TYPE_TAG) {
+                    // Values of up to four bytes are stored in the entry itself
+                    subfileType = buffer.getShort(entry + 2) == TIFF_SHORT_TYPE ? buffer.getShort(entry + 8) & 0xFFFF
+                            : buffer.getInt(entry + 8) & 0xFFFFFFFFL;
+                }
+            }
+
+            subfileTypes.add(subfileType);
+            offset = buffer.getInt((int) nextOffset) & 0xFFFFFFFFL;
+        }
+
+        return subfileTypes;
+    }
 
+    private static Thumbnail toThumbnail(BufferedImage tbImage, String outputFormat) throws IOException {
         String mimeType = getMimeType("thumbnail." + outputFormat);
         if (mimeType == null || mimeType.equals("application/octet-stream")) {
             outputFormat = "jpg";
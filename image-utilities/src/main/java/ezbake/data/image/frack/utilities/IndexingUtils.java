@@ -21,6 +21,8 @@ import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+
 public class IndexingUtils {
     public static byte[] getHash(byte[] imageData, String fileName) throws NoSuchAlgorithmException {
         final MessageDigest digest = MessageDigest.getInstance("SHA-256");
@@ -29,6 +31,21 @@ public class IndexingUtils {
         return digest.digest();
     }
 
+    /**
+     * Row ID an image extracted from a document is stored under, derived from its bytes and file name.
+     */
+    public static byte[] getImageId(Image image) throws NoSuchAlgorithmException {
+        return getHash(image.getBlob(), image.getFileName());
+    }
+
+    /**
+     * Hashes only the image bytes, so identical images embedded in different documents or under different file names
+     * get the same hash.
+     */
+    public static byte[] getContentHash(byte[] imageData) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(imageData);
+    }
+
     public static String bytesToHex(byte[] bytes) {
         return printHexBinary(bytes);
     }
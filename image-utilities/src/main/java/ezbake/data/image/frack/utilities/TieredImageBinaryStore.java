@@ -0,0 +1,507 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.image.frack.utilities;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ezbake.data.image.frack.utilities.accumulo.AccumuloImageStore;
+import ezbake.data.image.frack.utilities.local.LocalImageBinaryStore;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.Visibility;
+import ezbake.common.properties.EzProperties;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IndexingStatus;
+import ezbake.services.indexing.image.thrift.InsertFailed;
+import ezbake.services.indexing.image.thrift.Thumbnail;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+/**
+ * Image store that keeps recently used images and thumbnails in a local store in front of Accumulo, so reads of hot
+ * images never reach the tablet servers.
+ * <p>
+ * Accumulo stays the store of record. Added images are written to Accumulo first and then to the local tier.
+ * Originals and thumbnails read from Accumulo are copied to the local tier together with the visibility they were
+ * written with, and the local tier evaluates that visibility against the caller's authorizations on every read, so
+ * the access rules are the same whichever tier serves a read. Indexing status is always read from Accumulo, where the
+ * ingest pipeline records it.
+ * <p>
+ * Images may be deleted from Accumulo by other nodes, so a local copy is only trusted for a limited time. A read of a
+ * copy older than that first checks that the image or thumbnail is still in Accumulo; if it is gone, the copy is
+ * dropped and the read goes to Accumulo.
+ * <p>
+ * The local tier is bounded by the total bytes of its images. Once over the limit, the least recently used images are
+ * dropped from it, and its files are compacted on a background thread when dropped values take up half as much space
+ * as the limit. The files of the local tier thus take up to one and a half times the limit, and up to two and a half
+ * times while compacting.
+ */
+public class TieredImageBinaryStore implements ImageBinaryStore {
+    /**
+     * Total bytes of images to keep in the local tier. Defaults to 10 GB.
+     */
+    public static final String MAX_LOCAL_BYTES_KEY = "image.store.tiered.maxLocalBytes";
+
+    /**
+     * Milliseconds a local copy of an image is served before it is checked against Accumulo again. Defaults to five
+     * minutes.
+     */
+    public static final String REVALIDATE_MS_KEY = "image.store.tiered.revalidateMs";
+
+    private static final Logger logger = getLogger(TieredImageBinaryStore.class);
+
+    private static final class LocalImage {
+        private final long bytes;
+        private long validatedAt;
+
+        private LocalImage(long bytes, long validatedAt) {
+            this.bytes = bytes;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    private final AccumuloImageStore durable;
+    private final LocalImageBinaryStore local;
+    private final long maxLocalBytes;
+    private final long revalidateMs;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("local-tier-compactor-%d").build());
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    // Images in the local tier by normalized image ID, least recently used first. Guarded by itself.
+    private final LinkedHashMap<String, LocalImage> recency = new LinkedHashMap<>(16, 0.75f, true);
+    private long localBytes;
+
+    public TieredImageBinaryStore(AccumuloImageStore durable, LocalImageBinaryStore local, Properties config) {
+        this(durable, local, new EzProperties(config, false).getLong(MAX_LOCAL_BYTES_KEY, 10L * 1024 * 1024 * 1024),
+                new EzProperties(config, false).getLong(REVALIDATE_MS_KEY, TimeUnit.MINUTES.toMillis(5)));
+    }
+
+    public TieredImageBinaryStore(AccumuloImageStore durable, LocalImageBinaryStore local, long maxLocalBytes,
+            long revalidateMs) {
+        this.durable = durable;
+        this.local = local;
+        this.maxLocalBytes = maxLocalBytes;
+        this.revalidateMs = revalidateMs;
+
+        // Images kept from an earlier run have no known recency, so they are evicted first in arbitrary order. They
+        // are checked against Accumulo on their first read.
+        final List<String> evicted;
+        synchronized (recency) {
+            for (final String imageId : local.getImageIds()) {
+                final long bytes = local.getImageBytes(imageId);
+                recency.put(imageId, new LocalImage(bytes, 0));
+                localBytes += bytes;
+            }
+
+            evicted = evict();
+        }
+
+        deleteEvicted(evicted);
+    }
+
+    @Override
+    public boolean ping() {
+        return durable.ping();
+    }
+
+    @Override
+    public void addImage(Image image, String imageId, Visibility visibility, String... types) throws InsertFailed {
+        durable.addImage(image, imageId, visibility, types);
+
+        // Thumbnails are copied to the local tier when first read rather than created a second time here
+        local.deleteImage(imageId, null);
+        try {
+            local.putImage(imageId, visibility, image);
+        } catch (final IOException ex) {
+            logger.warn("Could not write image " + imageId + " to the local tier", ex);
+        } catch (final TException ex) {
+            logger.warn("Could not write image " + imageId + " to the local tier", ex);
+        }
+
+        stored(imageId);
+    }
+
+    @Override
+    public Image getImage(String imageId, Authorizations auths) {
+        Image image = local.getImage(imageId, auths);
+        if (image != null && isValid(imageId, auths, null)) {
+            return image;
+        }
+
+        image = durable.getImage(imageId, auths);
+        if (image != null) {
+            promote(imageId, durable.getImageVisibility(imageId, auths), image);
+        }
+
+        return image;
+    }
+
+    @Override
+    public Map<String, Image> getImages(Collection<String> imageIds, Authorizations auths) {
+        final Map<String, Image> found = new HashMap<>();
+        final Map<String, Image> unchecked = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        for (final String imageId : imageIds) {
+            final Image image = local.getImage(imageId, auths);
+            if (image == null) {
+                missing.add(imageId);
+            } else if (isFresh(imageId)) {
+                found.put(imageId, image);
+            } else {
+                unchecked.put(imageId, image);
+            }
+        }
+
+        if (!unchecked.isEmpty()) {
+            revalidate(unchecked, durable.getImageVisibilities(unchecked.keySet(), auths).keySet(), found, missing);
+        }
+
+        if (!missing.isEmpty()) {
+            final Map<String, Image> read = durable.getImages(missing, auths);
+            if (!read.isEmpty()) {
+                final Map<String, Visibility> visibilities = durable.getImageVisibilities(read.keySet(), auths);
+                for (final Map.Entry<String, Image> image : read.entrySet()) {
+                    promote(image.getKey(), visibilities.get(image.getKey()), image.getValue());
+                }
+            }
+
+            found.putAll(read);
+        }
+
+        return found;
+    }
+
+    @Override
+    public void deleteImage(String imageId, Authorizations auths) {
+        durable.deleteImage(imageId, auths);
+        dropLocal(imageId);
+    }
+
+    @Override
+    public Thumbnail getThumbnail(String imageId, Authorizations auths, ThumbnailSize size) {
+        Thumbnail thumbnail = local.getThumbnail(imageId, auths, size);
+        if (thumbnail != null && isValid(imageId, auths, size)) {
+            return thumbnail;
+        }
+
+        thumbnail = durable.getThumbnail(imageId, auths, size);
+        if (thumbnail != null) {
+            promote(imageId, durable.getThumbnailVisibility(imageId, auths, size), size, thumbnail);
+        }
+
+        return thumbnail;
+    }
+
+    @Override
+    public Map<String, Thumbnail> getThumbnails(Collection<String> imageIds, Authorizations auths,
+            ThumbnailSize size) {
+        final Map<String, Thumbnail> found = new HashMap<>();
+        final Map<String, Thumbnail> unchecked = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        for (final String imageId : imageIds) {
+            final Thumbnail thumbnail = local.getThumbnail(imageId, auths, size);
+            if (thumbnail == null) {
+                missing.add(imageId);
+            } else if (isFresh(imageId)) {
+                found.put(imageId, thumbnail);
+            } else {
+                unchecked.put(imageId, thumbnail);
+            }
+        }
+
+        if (!unchecked.isEmpty()) {
+            revalidate(unchecked, durable.getThumbnailVisibilities(unchecked.keySet(), auths, size).keySet(), found,
+                    missing);
+        }
+
+        if (!missing.isEmpty()) {
+            final Map<String, Thumbnail> read = durable.getThumbnails(missing, auths, size);
+            if (!read.isEmpty()) {
+                final Map<String, Visibility> visibilities =
+                        durable.getThumbnailVisibilities(read.keySet(), auths, size);
+                for (final Map.Entry<String, Thumbnail> thumbnail : read.entrySet()) {
+                    promote(thumbnail.getKey(), visibilities.get(thumbnail.getKey()), size, thumbnail.getValue());
+                }
+            }
+
+            found.putAll(read);
+        }
+
+        return found;
+    }
+
+    @Override
+    public IndexingStatus getIndexingStatus(String imageId, Authorizations auths) {
+        return durable.getIndexingStatus(imageId, auths);
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Compaction of the local tier did not finish before closing");
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            local.close();
+        } finally {
+            durable.close();
+        }
+    }
+
+    /**
+     * Copies an image read from Accumulo to the local tier, labeled with the visibility it has in Accumulo.
+     *
+     * @param visibility Visibility of the image in Accumulo, or null if it could not be read
+     */
+    private void promote(String imageId, Visibility visibility, Image image) {
+        if (visibility == null) {
+            return;
+        }
+
+        try {
+            local.putImage(imageId, visibility, image);
+            stored(imageId);
+        } catch (final IOException ex) {
+            logger.warn("Could not copy image " + imageId + " to the local tier", ex);
+        } catch (final TException ex) {
+            logger.warn("Could not copy image " + imageId + " to the local tier", ex);
+        }
+    }
+
+    /**
+     * Copies a thumbnail read from Accumulo to the local tier, labeled with the visibility it has in Accumulo.
+     *
+     * @param visibility Visibility of the thumbnail in Accumulo, or null if it could not be read
+     */
+    private void promote(String imageId, Visibility visibility, ThumbnailSize size, Thumbnail thumbnail) {
+        if (visibility == null) {
+            return;
+        }
+
+        try {
+            local.putThumbnail(imageId, visibility, size, thumbnail);
+            stored(imageId);
+        } catch (final IOException ex) {
+            logger.warn("Could not copy thumbnail of size " + size + " for image " + imageId + " to the local tier",
+                    ex);
+        } catch (final TException ex) {
+            logger.warn("Could not copy thumbnail of size " + size + " for image " + imageId + " to the local tier",
+                    ex);
+        }
+    }
+
+    /**
+     * Marks a local copy as used and, if it was last checked too long ago, checks that the image, or the thumbnail
+     * of the given size, is still in Accumulo. A copy that is no longer there is dropped from the local tier.
+     *
+     * @return true if the local copy may be served
+     */
+    private boolean isValid(String imageId, Authorizations auths, ThumbnailSize size) {
+        if (isFresh(imageId)) {
+            return true;
+        }
+
+        final long now = System.currentTimeMillis();
+        final Visibility visibility = size == null ? durable.getImageVisibility(imageId, auths)
+                : durable.getThumbnailVisibility(imageId, auths, size);
+        return validated(imageId, visibility != null, now);
+    }
+
+    /**
+     * Marks a local copy as used.
+     *
+     * @return true if the copy was checked against Accumulo recently enough to be served without checking it again
+     */
+    private boolean isFresh(String imageId) {
+        synchronized (recency) {
+            final LocalImage localImage = recency.get(normalize(imageId));
+            return localImage != null && System.currentTimeMillis() - localImage.validatedAt < revalidateMs;
+        }
+    }
+
+    /**
+     * Sorts local copies that were checked against Accumulo together into those that may be served and those that
+     * have to be read from Accumulo.
+     *
+     * @param stored IDs of the images whose value is still in Accumulo
+     */
+    private <T> void revalidate(Map<String, T> unchecked, Set<String> stored, Map<String, T> found,
+            List<String> missing) {
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<String, T> value : unchecked.entrySet()) {
+            if (validated(value.getKey(), stored.contains(value.getKey()), now)) {
+                found.put(value.getKey(), value.getValue());
+            } else {
+                missing.add(value.getKey());
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of checking a local copy against Accumulo. A copy that is no longer there is dropped from
+     * the local tier.
+     *
+     * @param checkedAt Time the check started
+     * @return true if the local copy may be served
+     */
+    private boolean validated(String imageId, boolean stored, long checkedAt) {
+        if (!stored) {
+            logger.info("Image {} is no longer in Accumulo, dropping it from the local tier", imageId);
+            dropLocal(imageId);
+            return false;
+        }
+
+        synchronized (recency) {
+            final LocalImage localImage = recency.get(normalize(imageId));
+            if (localImage != null) {
+                localImage.validatedAt = checkedAt;
+            }
+        }
+
+        return true;
+    }
+
+    private void dropLocal(String imageId) {
+        local.deleteImage(imageId, null);
+
+        synchronized (recency) {
+            final LocalImage localImage = recency.remove(normalize(imageId));
+            if (localImage != null) {
+                localBytes -= localImage.bytes;
+            }
+        }
+    }
+
+    /**
+     * Records the size of an image after a value was copied to the local tier. The copy was just read from or
+     * written to Accumulo, so it counts as checked.
+     */
+    private void stored(String imageId) {
+        final String normalizedId = normalize(imageId);
+        final List<String> evicted;
+        final long liveBytes;
+        synchronized (recency) {
+            final long bytes = local.getImageBytes(normalizedId);
+            final LocalImage previous = recency.get(normalizedId);
+            final long validatedAt = previous == null ? System.currentTimeMillis() : previous.validatedAt;
+            recency.put(normalizedId, new LocalImage(bytes, validatedAt));
+            localBytes += bytes - (previous == null ? 0 : previous.bytes);
+            evicted = evict();
+            liveBytes = localBytes;
+        }
+
+        deleteEvicted(evicted);
+        compactIfNeeded(liveBytes);
+    }
+
+    /**
+     * Removes the least recently used images from the recency order until the local tier is within its limit.
+     * Callers must hold the recency lock, and delete the returned images with {@link #deleteEvicted} once they have
+     * released it, so reads are not held up by the deletes.
+     *
+     * @return Normalized IDs of the evicted images
+     */
+    private List<String> evict() {
+        final List<String> evicted = new ArrayList<>();
+        final Iterator<Map.Entry<String, LocalImage>> eldest = recency.entrySet().iterator();
+        while (localBytes > maxLocalBytes && eldest.hasNext()) {
+            final Map.Entry<String, LocalImage> image = eldest.next();
+            evicted.add(image.getKey());
+            localBytes -= image.getValue().bytes;
+            eldest.remove();
+        }
+
+        return evicted;
+    }
+
+    private void deleteEvicted(List<String> evicted) {
+        for (final String imageId : evicted) {
+            local.deleteImage(imageId, null);
+
+            synchronized (recency) {
+                // A copy made again while the image was being deleted may or may not have survived the delete, so
+                // its size is taken from what the local tier holds now
+                final LocalImage recopied = recency.get(imageId);
+                if (recopied != null) {
+                    final long bytes = local.getImageBytes(imageId);
+                    localBytes += bytes - recopied.bytes;
+                    recency.put(imageId, new LocalImage(bytes, recopied.validatedAt));
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a compaction of the local tier on the background thread when dropped values take up half as much space
+     * as the limit, unless one is already running.
+     */
+    private void compactIfNeeded(long liveBytes) {
+        if (local.getStoredBytes() - liveBytes < maxLocalBytes / 2 || !compacting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        local.compact();
+                    } catch (final IOException ex) {
+                        logger.error("Could not compact the local tier", ex);
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            // The store is closing
+            compacting.set(false);
+        }
+    }
+
+    private static String normalize(String imageId) {
+        return bytesToHex(hexToBytes(imageId));
+    }
+}
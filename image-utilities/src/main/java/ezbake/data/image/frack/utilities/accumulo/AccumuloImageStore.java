@@ -14,53 +14,104 @@
 
 package ezbake.data.image.frack.utilities.accumulo;
 
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getContentHash;
 import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+import static ezbake.data.image.frack.utilities.accumulo.AccumuloStoreConfig.SERVING_PROFILE;
 
 import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.Instance;
 import org.apache.accumulo.core.client.TableExistsException;
 import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.thrift.TBase;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ezbake.data.image.frack.utilities.ImageBinaryStore;
 import ezbake.data.image.frack.utilities.ImageUtils;
+import ezbake.data.image.frack.utilities.cache.OffHeapByteCache;
 
 import com.google.common.base.Joiner;
 
 import ezbake.base.thrift.Authorizations;
 import ezbake.base.thrift.Visibility;
+import ezbake.common.properties.EzProperties;
 import ezbake.services.extractor.imagemetadata.thrift.Image;
 import ezbake.services.extractor.imagemetadata.thrift.InvalidImageException;
 import ezbake.services.indexing.image.thrift.IndexingStage;
 import ezbake.services.indexing.image.thrift.IndexingStatus;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
 import ezbake.services.indexing.image.thrift.InsertFailed;
 import ezbake.services.indexing.image.thrift.Thumbnail;
 import ezbake.services.indexing.image.thrift.ThumbnailSize;
+import ezbake.thrift.ThriftUtils;
 
+/**
+ * Image store reading and writing images, thumbnails and indexing status in Accumulo.
+ * <p>
+ * Serialized thumbnails, and optionally originals, can be cached in an {@link OffHeapByteCache} so a large cache adds
+ * nothing to garbage collection. It combines with a {@code CachingImageBinaryStore} in front of this store: that
+ * cache holds a small set of the hottest thumbnails already deserialized on the heap, and its misses fall through to
+ * the off-heap cache before reaching Accumulo. Both drop the entries of an image that is added again or deleted
+ * through them.
+ */
 public class AccumuloImageStore implements ImageBinaryStore {
+    /**
+     * Bytes of direct memory used to cache serialized thumbnails, and optionally originals, off the heap. Defaults to
+     * 0, which disables the cache.
+     */
+    public static final String OFF_HEAP_CACHE_BYTES_KEY = "image.store.offHeapCache.maxBytes";
+
+    /**
+     * Whether the off-heap cache also holds original images. Defaults to false, since a few originals can push out
+     * many thumbnails. Originals larger than a segment are never cached.
+     */
+    public static final String OFF_HEAP_CACHE_ORIGINALS_KEY = "image.store.offHeapCache.originals";
+
+    /**
+     * Number of segments the off-heap cache is split into and evicted by. Defaults to 16.
+     */
+    public static final String OFF_HEAP_CACHE_SEGMENTS_KEY = "image.store.offHeapCache.segments";
+
     private static final Logger logger = LoggerFactory.getLogger(AccumuloImageStore.class);
 
     private final AccumuloThriftReaderWriter accumuloReaderWriter;
     private final IndexingStatusReaderWriter statusWriter;
+    private final ContentIndexReaderWriter contentIndex;
+    private final OffHeapByteCache offHeapCache;
+    private final boolean cacheOriginals;
 
     public AccumuloImageStore(Properties config) throws AccumuloException, AccumuloSecurityException,
             TableExistsException, TableNotFoundException {
-        accumuloReaderWriter = new AccumuloThriftReaderWriter(config);
+        accumuloReaderWriter = new AccumuloThriftReaderWriter(config, SERVING_PROFILE);
         statusWriter = new IndexingStatusReaderWriter(accumuloReaderWriter);
+        contentIndex = new ContentIndexReaderWriter(accumuloReaderWriter);
+        offHeapCache = createOffHeapCache(config);
+        cacheOriginals = offHeapCache != null
+                && new EzProperties(config, false).getBoolean(OFF_HEAP_CACHE_ORIGINALS_KEY, false);
     }
 
     public AccumuloImageStore(Instance instance, Properties config) throws AccumuloException,
             AccumuloSecurityException, TableExistsException, TableNotFoundException {
-        accumuloReaderWriter = new AccumuloThriftReaderWriter(instance, config);
+        accumuloReaderWriter = new AccumuloThriftReaderWriter(instance, config, SERVING_PROFILE);
         statusWriter = new IndexingStatusReaderWriter(accumuloReaderWriter);
+        contentIndex = new ContentIndexReaderWriter(accumuloReaderWriter);
+        offHeapCache = createOffHeapCache(config);
+        cacheOriginals = offHeapCache != null
+                && new EzProperties(config, false).getBoolean(OFF_HEAP_CACHE_ORIGINALS_KEY, false);
     }
 
     @Override
@@ -72,19 +123,24 @@ public class AccumuloImageStore implements ImageBinaryStore {
     public void addImage(Image image, String imageId, Visibility visibility, String... types) throws InsertFailed {
         try {
             final byte[] rowId = hexToBytes(imageId);
-            accumuloReaderWriter.write(image, rowId, visibility.getFormalVisibility());
+            accumuloReaderWriter.writeAsync(image, rowId, visibility.getFormalVisibility());
 
             String type = "jpg";
             if (types.length > 0) {
                 type = types[0];
             }
 
-            for (final ThumbnailSize thumbSize : ThumbnailSize.values()) {
-                final Thumbnail thumbnail = ImageUtils.createThumbnail(image, thumbSize, type);
-                if (thumbnail != null) {
-                    accumuloReaderWriter.write(thumbnail, rowId, visibility.getFormalVisibility(), thumbSize.name());
-                }
+            final Map<ThumbnailSize, Thumbnail> thumbnails = ImageUtils.createThumbnails(image, type);
+            for (final Map.Entry<ThumbnailSize, Thumbnail> thumbnail : thumbnails.entrySet()) {
+                accumuloReaderWriter.writeAsync(thumbnail.getValue(), rowId, visibility.getFormalVisibility(),
+                        thumbnail.getKey().name());
             }
+
+            // Concurrent addImage calls are grouped into the same flush of the batch writer
+            accumuloReaderWriter.flush();
+
+            // Only once the new image and thumbnails are stored, so a read in between cannot cache the old ones again
+            invalidateCached(rowId);
         } catch (final IOException ex) {
             final String errMsg = "Could not write image " + imageId + " into Accumulo";
             logger.error(errMsg, ex);
@@ -103,8 +159,8 @@ public class AccumuloImageStore implements ImageBinaryStore {
     @Override
     public Image getImage(String imageId, Authorizations auths) {
         try {
-            return accumuloReaderWriter.read(Image.class, hexToBytes(imageId),
-                    formalAuthsToString(auths.getFormalAuthorizations()));
+            return read(Image.class, hexToBytes(imageId), auths, AccumuloThriftReaderWriter.IMAGE_CHUNK_FAMILY,
+                    cacheOriginals);
         } catch (final IOException ex) {
             logger.error("Could not read image " + imageId + " from Accumulo.", ex);
         } catch (final TException ex) {
@@ -114,11 +170,51 @@ public class AccumuloImageStore implements ImageBinaryStore {
         return null;
     }
 
+    @Override
+    public Map<String, Image> getImages(Collection<String> imageIds, Authorizations auths) {
+        try {
+            return readAll(Image.class, imageIds, auths, AccumuloThriftReaderWriter.IMAGE_CHUNK_FAMILY, cacheOriginals);
+        } catch (final IOException ex) {
+            logger.error("Could not read " + imageIds.size() + " images from Accumulo.", ex);
+        } catch (final TException ex) {
+            logger.error("Could not read " + imageIds.size() + " images from Accumulo.", ex);
+        }
+
+        return new HashMap<>();
+    }
+
+    /**
+     * Deletes one occurrence of an image. A deduplicated image is stored once and referenced by the other documents
+     * containing it, so while references remain only one of them is removed. The stored image, its thumbnails and
+     * its content index cell are deleted with the last occurrence.
+     */
     @Override
     public void deleteImage(String imageId, Authorizations auths) {
+        final byte[] rowId = hexToBytes(imageId);
+        final String authorizations = formalAuthsToString(auths.getFormalAuthorizations());
         try {
-            accumuloReaderWriter.delete(hexToBytes(imageId));
-        } catch (final Exception ex) {
+            final List<IngestedImageInfo> references = contentIndex.getReferences(rowId, authorizations);
+            if (!references.isEmpty()) {
+                contentIndex.removeReference(rowId, references.get(references.size() - 1));
+                accumuloReaderWriter.flush();
+                return;
+            }
+
+            final String visibility = accumuloReaderWriter.readVisibility(rowId, authorizations,
+                    AccumuloThriftReaderWriter.IMAGE_CHUNK_FAMILY);
+            final Image image = accumuloReaderWriter.read(Image.class, rowId, authorizations);
+            if (visibility != null && image != null && image.isSetBlob()) {
+                contentIndex.removeCanonicalRowId(getContentHash(image.getBlob()), rowId, visibility, authorizations);
+            }
+
+            // Flushes the index cell deletion together with the row
+            accumuloReaderWriter.delete(rowId);
+            invalidateCached(rowId);
+        } catch (final IOException ex) {
+            logger.error("Could not delete image " + imageId, ex);
+        } catch (final NoSuchAlgorithmException ex) {
+            logger.error("Could not delete image " + imageId, ex);
+        } catch (final TException ex) {
             logger.error("Could not delete image " + imageId, ex);
         }
     }
@@ -126,8 +222,7 @@ public class AccumuloImageStore implements ImageBinaryStore {
     @Override
     public Thumbnail getThumbnail(String imageId, Authorizations auths, ThumbnailSize size) {
         try {
-            return accumuloReaderWriter.read(Thumbnail.class, hexToBytes(imageId),
-                    formalAuthsToString(auths.getFormalAuthorizations()), size.name());
+            return read(Thumbnail.class, hexToBytes(imageId), auths, size.name(), offHeapCache != null);
         } catch (final IOException ex) {
             logger.error("Could not read thumbnail of size " + size + " for image " + imageId + " from Accumulo", ex);
         } catch (final TException ex) {
@@ -137,6 +232,22 @@ public class AccumuloImageStore implements ImageBinaryStore {
         return null;
     }
 
+    @Override
+    public Map<String, Thumbnail> getThumbnails(Collection<String> imageIds, Authorizations auths,
+            ThumbnailSize size) {
+        try {
+            return readAll(Thumbnail.class, imageIds, auths, size.name(), offHeapCache != null);
+        } catch (final IOException ex) {
+            logger.error("Could not read thumbnails of size " + size + " for " + imageIds.size()
+                    + " images from Accumulo", ex);
+        } catch (final TException ex) {
+            logger.error("Could not read thumbnails of size " + size + " for " + imageIds.size()
+                    + " images from Accumulo", ex);
+        }
+
+        return new HashMap<>();
+    }
+
     @Override
     public IndexingStatus getIndexingStatus(String imageId, Authorizations auths) {
         IndexingStatus status = null;
@@ -161,6 +272,180 @@ public class AccumuloImageStore implements ImageBinaryStore {
         accumuloReaderWriter.close();
     }
 
+    /**
+     * @return The visibility the image was written with, or null if no image is visible with the authorizations
+     */
+    public Visibility getImageVisibility(String imageId, Authorizations auths) {
+        return toVisibility(accumuloReaderWriter.readVisibility(hexToBytes(imageId),
+                formalAuthsToString(auths.getFormalAuthorizations()), AccumuloThriftReaderWriter.IMAGE_CHUNK_FAMILY));
+    }
+
+    /**
+     * @return The visibility the thumbnail was written with, or null if no thumbnail of the size is visible with the
+     *         authorizations
+     */
+    public Visibility getThumbnailVisibility(String imageId, Authorizations auths, ThumbnailSize size) {
+        return toVisibility(accumuloReaderWriter.readVisibility(hexToBytes(imageId),
+                formalAuthsToString(auths.getFormalAuthorizations()), size.name()));
+    }
+
+    /**
+     * Reads the visibilities of many images with a single batch scan.
+     *
+     * @return The visibilities the images were written with, keyed by the given image IDs. Images not visible with
+     *         the authorizations are omitted.
+     */
+    public Map<String, Visibility> getImageVisibilities(Collection<String> imageIds, Authorizations auths) {
+        return readVisibilities(imageIds, auths, AccumuloThriftReaderWriter.IMAGE_CHUNK_FAMILY);
+    }
+
+    /**
+     * Reads the visibilities of the thumbnails of many images with a single batch scan.
+     *
+     * @return The visibilities the thumbnails were written with, keyed by the given image IDs. Images without a
+     *         thumbnail of the size visible with the authorizations are omitted.
+     */
+    public Map<String, Visibility> getThumbnailVisibilities(Collection<String> imageIds, Authorizations auths,
+            ThumbnailSize size) {
+        return readVisibilities(imageIds, auths, size.name());
+    }
+
+    /**
+     * @return The off-heap cache, or null if it is disabled
+     */
+    public OffHeapByteCache getOffHeapCache() {
+        return offHeapCache;
+    }
+
+    /**
+     * Reads a value, through the off-heap cache if asked to.
+     */
+    private <T extends TBase<?, ?>> T read(Class<T> clazz, byte[] rowId, Authorizations auths, String family,
+            boolean cached) throws IOException, TException {
+        final String authorizations = formalAuthsToString(auths.getFormalAuthorizations());
+        if (!cached) {
+            return accumuloReaderWriter.read(clazz, rowId, authorizations, family);
+        }
+
+        final String cacheKey = getCacheKey(rowId, family, auths);
+        byte[] bytes = offHeapCache.get(cacheKey);
+        if (bytes == null) {
+            bytes = accumuloReaderWriter.readBytes(rowId, authorizations, family);
+            if (bytes == null) {
+                return null;
+            }
+
+            offHeapCache.put(bytesToHex(rowId), cacheKey, bytes);
+        }
+
+        return ThriftUtils.deserialize(clazz, bytes);
+    }
+
+    /**
+     * Reads the values of many images with one batch scan for those not found in the off-heap cache, if asked to use
+     * it.
+     */
+    private <T extends TBase<?, ?>> Map<String, T> readAll(Class<T> clazz, Collection<String> imageIds,
+            Authorizations auths, String family, boolean cached) throws IOException, TException {
+        final Map<String, T> found = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        if (!cached) {
+            missing.addAll(imageIds);
+        } else {
+            for (final String imageId : imageIds) {
+                final byte[] bytes = offHeapCache.get(getCacheKey(hexToBytes(imageId), family, auths));
+                if (bytes != null) {
+                    found.put(imageId, ThriftUtils.deserialize(clazz, bytes));
+                } else {
+                    missing.add(imageId);
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            final Map<String, T> read = toImageIds(missing, accumuloReaderWriter.readAll(clazz, toRowIds(missing),
+                    formalAuthsToString(auths.getFormalAuthorizations()), family));
+            if (cached) {
+                for (final Map.Entry<String, T> value : read.entrySet()) {
+                    final byte[] rowId = hexToBytes(value.getKey());
+                    offHeapCache.put(bytesToHex(rowId), getCacheKey(rowId, family, auths),
+                            ThriftUtils.serialize(value.getValue()));
+                }
+            }
+
+            found.putAll(read);
+        }
+
+        return found;
+    }
+
+    private Map<String, Visibility> readVisibilities(Collection<String> imageIds, Authorizations auths,
+            String family) {
+        final Map<String, String> byRowId = accumuloReaderWriter.readVisibilities(toRowIds(imageIds),
+                formalAuthsToString(auths.getFormalAuthorizations()), family);
+
+        final Map<String, Visibility> visibilities = new HashMap<>();
+        for (final Map.Entry<String, String> visibility : toImageIds(imageIds, byRowId).entrySet()) {
+            visibilities.put(visibility.getKey(), toVisibility(visibility.getValue()));
+        }
+
+        return visibilities;
+    }
+
+    private static OffHeapByteCache createOffHeapCache(Properties config) {
+        final EzProperties ezProps = new EzProperties(config, false);
+        final long maxBytes = ezProps.getLong(OFF_HEAP_CACHE_BYTES_KEY, 0);
+        if (maxBytes <= 0) {
+            return null;
+        }
+
+        return new OffHeapByteCache(maxBytes, ezProps.getInteger(OFF_HEAP_CACHE_SEGMENTS_KEY, 16));
+    }
+
+    /**
+     * Cache keys are the row ID and family, as stored by {@link AccumuloThriftReaderWriter}, followed by the sorted
+     * authorizations so a cached value is only served to callers with the same authorizations. Entries are grouped by
+     * row ID so the image and all its thumbnails can be dropped together.
+     */
+    private String getCacheKey(byte[] rowId, String family, Authorizations auths) {
+        return bytesToHex(rowId) + '/' + family + '/'
+                + formalAuthsToString(new TreeSet<>(auths.getFormalAuthorizations()));
+    }
+
+    private void invalidateCached(byte[] rowId) {
+        if (offHeapCache != null) {
+            offHeapCache.invalidateGroup(bytesToHex(rowId));
+        }
+    }
+
+    private static Visibility toVisibility(String formalVisibility) {
+        return formalVisibility == null ? null : new Visibility().setFormalVisibility(formalVisibility);
+    }
+
+    private List<byte[]> toRowIds(Collection<String> imageIds) {
+        final List<byte[]> rowIds = new ArrayList<>(imageIds.size());
+        for (final String imageId : imageIds) {
+            rowIds.add(hexToBytes(imageId));
+        }
+
+        return rowIds;
+    }
+
+    /**
+     * Re-keys results read by row ID with the image IDs the caller asked for, which may differ in hex case.
+     */
+    private <T> Map<String, T> toImageIds(Collection<String> imageIds, Map<String, T> byRowId) {
+        final Map<String, T> byImageId = new HashMap<>();
+        for (final String imageId : imageIds) {
+            final T value = byRowId.get(bytesToHex(hexToBytes(imageId)));
+            if (value != null) {
+                byImageId.put(imageId, value);
+            }
+        }
+
+        return byImageId;
+    }
+
     private String formalAuthsToString(Set<String> formalAuths) {
         return Joiner.on(',').join(formalAuths);
     }
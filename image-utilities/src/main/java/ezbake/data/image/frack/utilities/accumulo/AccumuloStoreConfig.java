@@ -0,0 +1,159 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.Properties;
+
+import org.slf4j.Logger;
+
+/**
+ * Tuning settings for the Accumulo batch writer and scanners used by {@link AccumuloThriftReaderWriter}.
+ * <p>
+ * Every setting is read from an {@code accumulo.<name>} property. When a profile such as {@link #INGEST_PROFILE} or
+ * {@link #SERVING_PROFILE} is given, an {@code accumulo.<profile>.<name>} property takes precedence, so one set of
+ * properties can describe differently-tuned readers and writers in the same process.
+ */
+public class AccumuloStoreConfig {
+    public static final String INGEST_PROFILE = "ingest";
+    public static final String SERVING_PROFILE = "serving";
+
+    public static final String WRITER_MAX_MEMORY = "writer.maxMemory";
+    public static final String WRITER_MAX_WRITE_THREADS = "writer.maxWriteThreads";
+    public static final String WRITER_MAX_LATENCY_MS = "writer.maxLatencyMs";
+    public static final String WRITER_TIMEOUT_MS = "writer.timeoutMs";
+    public static final String FLUSH_INTERVAL_MS = "flushIntervalMs";
+    public static final String SCANNER_BATCH_SIZE = "scanner.batchSize";
+    public static final String STREAM_BATCH_SIZE = "scanner.streamBatchSize";
+    public static final String SCANNER_READ_AHEAD_THRESHOLD = "scanner.readAheadThreshold";
+    public static final String SCANNER_TIMEOUT_MS = "scanner.timeoutMs";
+    public static final String QUERY_THREADS = "queryThreads";
+    public static final String CHUNK_SIZE_MB = "chunkSizeMB";
+
+    private static final Logger logger = getLogger(AccumuloStoreConfig.class);
+    private static final String PREFIX = "accumulo.";
+
+    private final String profile;
+    private final long writerMaxMemory;
+    private final int writerMaxWriteThreads;
+    private final long writerMaxLatencyMs;
+    private final long writerTimeoutMs;
+    private final long flushIntervalMs;
+    private final int scannerBatchSize;
+    private final int streamBatchSize;
+    private final long scannerReadAheadThreshold;
+    private final long scannerTimeoutMs;
+    private final int queryThreads;
+    private final int chunkSizeMB;
+
+    public AccumuloStoreConfig(Properties config) {
+        this(config, null);
+    }
+
+    public AccumuloStoreConfig(Properties config, String profile) {
+        this.profile = profile;
+
+        writerMaxMemory = getLong(config, WRITER_MAX_MEMORY, 32 * 1024 * 1024);
+        writerMaxWriteThreads = (int) getLong(config, WRITER_MAX_WRITE_THREADS, 8);
+        writerMaxLatencyMs = getLong(config, WRITER_MAX_LATENCY_MS, Long.MAX_VALUE);
+        writerTimeoutMs = getLong(config, WRITER_TIMEOUT_MS, Long.MAX_VALUE);
+        flushIntervalMs = getLong(config, FLUSH_INTERVAL_MS, 1000);
+
+        // Full reads keep the Accumulo default, since they hold every chunk of the value anyway
+        scannerBatchSize = (int) getLong(config, SCANNER_BATCH_SIZE, 1000);
+
+        // Only fetch a couple of chunks per scan batch so streaming reads stay bounded by the chunk size
+        streamBatchSize = (int) getLong(config, STREAM_BATCH_SIZE, 2);
+        scannerReadAheadThreshold = getLong(config, SCANNER_READ_AHEAD_THRESHOLD, 3);
+        scannerTimeoutMs = getLong(config, SCANNER_TIMEOUT_MS, Long.MAX_VALUE);
+        queryThreads = (int) getLong(config, QUERY_THREADS, 8);
+
+        // Use 5 MB to make sure most of images to be written in one chunk
+        chunkSizeMB = (int) getLong(config, CHUNK_SIZE_MB, 5);
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public long getWriterMaxMemory() {
+        return writerMaxMemory;
+    }
+
+    public int getWriterMaxWriteThreads() {
+        return writerMaxWriteThreads;
+    }
+
+    public long getWriterMaxLatencyMs() {
+        return writerMaxLatencyMs;
+    }
+
+    public long getWriterTimeoutMs() {
+        return writerTimeoutMs;
+    }
+
+    public long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    public int getScannerBatchSize() {
+        return scannerBatchSize;
+    }
+
+    public int getStreamBatchSize() {
+        return streamBatchSize;
+    }
+
+    public long getScannerReadAheadThreshold() {
+        return scannerReadAheadThreshold;
+    }
+
+    public long getScannerTimeoutMs() {
+        return scannerTimeoutMs;
+    }
+
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+
+    public int getChunkSizeMB() {
+        return chunkSizeMB;
+    }
+
+    private long getLong(Properties config, String name, long defaultValue) {
+        String key = PREFIX + name;
+        String valueString = config.getProperty(key);
+        if (profile != null) {
+            final String profileKey = PREFIX + profile + "." + name;
+            final String profileValue = config.getProperty(profileKey);
+            if (profileValue != null) {
+                key = profileKey;
+                valueString = profileValue;
+            }
+        }
+
+        if (valueString == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(valueString.trim());
+        } catch (final NumberFormatException e) {
+            logger.warn("Invalid number given for config key " + key);
+            return defaultValue;
+        }
+    }
+}
@@ -16,23 +16,37 @@ package ezbake.data.image.frack.utilities.accumulo;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+
 import static ezbake.data.common.classification.ClassificationUtils.getAuthsFromString;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.SortedMap;
 import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchScanner;
 import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.Connector;
 import org.apache.accumulo.core.client.Instance;
 import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.Scanner;
 import org.apache.accumulo.core.client.TableExistsException;
 import org.apache.accumulo.core.client.TableNotFoundException;
@@ -45,12 +59,16 @@ import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.user.RowDeletingIterator;
 import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.io.Text;
 import org.apache.thrift.TBase;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import ezbake.configuration.constants.EzBakePropertyConstants;
 import ezbake.thrift.ThriftUtils;
@@ -59,28 +77,62 @@ public class AccumuloThriftReaderWriter {
     private static final Logger logger = getLogger(AccumuloThriftReaderWriter.class);
 
     private final String tableName = "ImageStore";
-    private static final String IMAGE_CHUNK_FAMILY = "Image_Chunk";
+    static final String IMAGE_CHUNK_FAMILY = "Image_Chunk";
     private static final String LENGTH_QUALIFIER = "Length";
     private static final String COLUMN_QUALIFIER_PREFIX = "Piece_";
 
-    // Use 5 MB to make sure most of images to be written in one chunk
-    private static final int DEFAULT_CHUNK_SIZE = 5;
-    private static final long MAX_MEMORY = 32 * 1024 * 1024;
-    private static final int MAX_WRITE_THREADS = 8;
-    private static final long MAX_LATENCY_MS = Long.MAX_VALUE;
-
     private final Properties config;
+    private final AccumuloStoreConfig storeConfig;
+    private final ImageStoreTableSettings tableSettings;
     private final Connector connector;
     private final BatchWriter writer;
+    private final List<SettableFuture<Void>> pendingWrites = new ArrayList<>();
+    private final ScheduledExecutorService flusher;
+    private final Object flushLock = new Object();
+
+    // Guarded by flushLock
+    private long flushRequests;
+    private FlushRound flushRound;
+
+    /**
+     * A flush of the batch writer shared by every {@link #flush()} call made before it started.
+     */
+    private static final class FlushRound {
+        private final long coveredRequests;
+        private boolean done;
+        private IOException failure;
+
+        private FlushRound(long coveredRequests) {
+            this.coveredRequests = coveredRequests;
+        }
+    }
 
     public AccumuloThriftReaderWriter(Properties config) throws AccumuloException, AccumuloSecurityException,
             TableExistsException, TableNotFoundException {
         this(createZookeeperInstance(config), config);
     }
 
+    public AccumuloThriftReaderWriter(Properties config, String profile) throws AccumuloException,
+            AccumuloSecurityException, TableExistsException, TableNotFoundException {
+        this(createZookeeperInstance(config), config, profile);
+    }
+
     public AccumuloThriftReaderWriter(Instance instance, Properties config) throws AccumuloException,
             AccumuloSecurityException, TableExistsException, TableNotFoundException {
+        this(instance, config, null);
+    }
+
+    /**
+     * @param instance Accumulo instance to connect to
+     * @param config Connection and tuning properties
+     * @param profile Name of the tuning profile, such as {@link AccumuloStoreConfig#INGEST_PROFILE}, whose
+     *        properties override the defaults, or null to use only the default properties
+     */
+    public AccumuloThriftReaderWriter(Instance instance, Properties config, String profile)
+            throws AccumuloException, AccumuloSecurityException, TableExistsException, TableNotFoundException {
         this.config = config;
+        this.storeConfig = new AccumuloStoreConfig(config, profile);
+        this.tableSettings = new ImageStoreTableSettings(config);
 
         final String userName = config.getProperty(EzBakePropertyConstants.ACCUMULO_USERNAME);
 
@@ -91,10 +143,82 @@ public class AccumuloThriftReaderWriter {
         makesureTableExist();
 
         final BatchWriterConfig writerConfig =
-                new BatchWriterConfig().setMaxMemory(MAX_MEMORY).setMaxWriteThreads(MAX_WRITE_THREADS)
-                        .setMaxLatency(MAX_LATENCY_MS, TimeUnit.MILLISECONDS);
+                new BatchWriterConfig().setMaxMemory(storeConfig.getWriterMaxMemory())
+                        .setMaxWriteThreads(storeConfig.getWriterMaxWriteThreads())
+                        .setMaxLatency(storeConfig.getWriterMaxLatencyMs(), TimeUnit.MILLISECONDS)
+                        .setTimeout(storeConfig.getWriterTimeoutMs(), TimeUnit.MILLISECONDS);
 
         writer = connector.createBatchWriter(tableName, writerConfig);
+
+        final long flushIntervalMs = storeConfig.getFlushIntervalMs();
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("accumulo-flusher-%d").build());
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (hasPendingWrites()) {
+                        flush();
+                    }
+                } catch (final IOException ex) {
+                    logger.error("Periodic flush of Accumulo writes failed", ex);
+                }
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public AccumuloStoreConfig getStoreConfig() {
+        return storeConfig;
+    }
+
+    public ImageStoreTableSettings getTableSettings() {
+        return tableSettings;
+    }
+
+    /**
+     * Adds the split points planned for the given number of images that the table does not have yet, so a live table
+     * can be split ahead of its growth.
+     *
+     * @return The number of split points added
+     */
+    public int addPlannedSplits(long expectedImages) throws AccumuloException, AccumuloSecurityException,
+            TableNotFoundException {
+        final TableOperations operations = connector.tableOperations();
+        final SortedSet<Text> splits = new SplitPlanner(config).getSplits(expectedImages);
+        splits.removeAll(operations.listSplits(tableName));
+
+        if (!splits.isEmpty()) {
+            operations.addSplits(tableName, splits);
+            logger.info("Added {} splits to table {}", splits.size(), tableName);
+        }
+
+        return splits.size();
+    }
+
+    /**
+     * Bulk imports the RFiles in a directory into the table. Files that cannot be imported are moved to the failure
+     * directory, which must exist and be empty.
+     */
+    public void importDirectory(String directory, String failureDirectory) throws AccumuloException,
+            AccumuloSecurityException, TableNotFoundException, IOException {
+        connector.tableOperations().importDirectory(tableName, directory, failureDirectory, false);
+    }
+
+    /**
+     * Applies the configured table settings to the existing table, for tables created before the settings were added
+     * or changed. Use this to upgrade existing tables.
+     *
+     * @param compact Whether to start a compaction that rewrites existing files with the new settings. The compaction
+     *        runs in the background.
+     */
+    public void applyTableSettings(boolean compact) throws AccumuloException, AccumuloSecurityException,
+            TableNotFoundException {
+        final TableOperations operations = connector.tableOperations();
+        tableSettings.apply(operations, tableName);
+
+        if (compact) {
+            operations.compact(tableName, null, null, true, false);
+        }
     }
 
     public <T extends TBase<?, ?>> T read(Class<T> clazz, byte[] rowId, String authorization) throws IOException,
@@ -104,7 +228,7 @@ public class AccumuloThriftReaderWriter {
 
     public <T extends TBase<?, ?>> T read(Class<T> clazz, byte[] rowId, String authorization, String appFamily)
             throws IOException, TException {
-        final byte[] bytes = read(rowId, authorization, appFamily);
+        final byte[] bytes = readBytes(rowId, authorization, appFamily);
         if (bytes == null) {
             return null;
         }
@@ -112,13 +236,319 @@ public class AccumuloThriftReaderWriter {
         return ThriftUtils.deserialize(clazz, bytes);
     }
 
+    /**
+     * Reads a value stored with the chunk layout without deserializing it. The whole value is held in memory, so its
+     * chunks are fetched with the full scanner batch size rather than the small batches of {@link #openStream}.
+     *
+     * @return The serialized value or null if there is none
+     */
+    public byte[] readBytes(byte[] rowId, String authorizations, String appFamily) throws IOException {
+        try (ChunkedValueInputStream stream =
+                openStream(rowId, authorizations, appFamily, storeConfig.getScannerBatchSize())) {
+            if (stream == null || stream.getLength() == 0) {
+                return null;
+            }
+
+            final byte[] dataBuffer = new byte[stream.getLength()];
+            IOUtils.readFully(stream, dataBuffer);
+            return dataBuffer;
+        }
+    }
+
+    public <T extends TBase<?, ?>> Map<String, T> readAll(Class<T> clazz, Collection<byte[]> rowIds,
+            String authorization) throws IOException, TException {
+        return readAll(clazz, rowIds, authorization, IMAGE_CHUNK_FAMILY);
+    }
+
+    /**
+     * Reads the values of many rows at once with a single {@link BatchScanner} instead of one scan per row.
+     *
+     * @param clazz Thrift type of the values
+     * @param rowIds Rows to read
+     * @param authorization Comma-separated authorizations to scan with
+     * @param appFamily Column family of the values
+     * @return Values keyed by the hex form of their row ID. Rows that do not exist or are not visible are omitted.
+     * @throws IOException If the stored chunks of a row are malformed
+     * @throws TException If a value could not be deserialized
+     */
+    public <T extends TBase<?, ?>> Map<String, T> readAll(Class<T> clazz, Collection<byte[]> rowIds,
+            String authorization, String appFamily) throws IOException, TException {
+        final Map<String, T> results = new HashMap<>();
+        if (rowIds.isEmpty()) {
+            return results;
+        }
+
+        final Map<Text, SortedMap<Key, Value>> rows = new HashMap<>();
+        BatchScanner scanner = null;
+        try {
+            scanner =
+                    connector.createBatchScanner(tableName, getAuthsFromString(authorization),
+                            storeConfig.getQueryThreads());
+            scanner.setTimeout(storeConfig.getScannerTimeoutMs(), TimeUnit.MILLISECONDS);
+            scanner.fetchColumnFamily(new Text(appFamily));
+
+            final List<Range> ranges = new ArrayList<>(rowIds.size());
+            for (final byte[] rowId : rowIds) {
+                ranges.add(new Range(new Text(rowId)));
+            }
+            scanner.setRanges(ranges);
+
+            // Batch scanners do not return entries in order, so group and sort the chunks per row
+            for (final Entry<Key, Value> kv : scanner) {
+                final Text row = kv.getKey().getRow();
+                SortedMap<Key, Value> rowEntries = rows.get(row);
+                if (rowEntries == null) {
+                    rowEntries = new TreeMap<>();
+                    rows.put(row, rowEntries);
+                }
+                rowEntries.put(kv.getKey(), kv.getValue());
+            }
+        } catch (final TableNotFoundException ex) {
+            logger.error("Could not find Accumulo table " + tableName, ex);
+            return results;
+        } finally {
+            if (scanner != null) {
+                scanner.close();
+            }
+        }
+
+        for (final Entry<Text, SortedMap<Key, Value>> row : rows.entrySet()) {
+            final T value = deserialize(clazz, row.getValue());
+            if (value != null) {
+                results.put(bytesToHex(row.getKey().copyBytes()), value);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Reads every cell of a column family in a row with a single scan.
+     *
+     * @param rowId Row to read
+     * @param authorizations Comma-separated authorizations to scan with
+     * @param appFamily Column family to read
+     * @return Cells sorted by key, empty if the row has no visible cells in the family
+     */
+    public SortedMap<Key, Value> readCells(byte[] rowId, String authorizations, String appFamily) {
+        final SortedMap<Key, Value> cells = new TreeMap<>();
+        try {
+            final Scanner scanner = connector.createScanner(tableName, getAuthsFromString(authorizations));
+            scanner.fetchColumnFamily(new Text(appFamily));
+            scanner.setRange(new Range(new Text(rowId)));
+            scanner.setTimeout(storeConfig.getScannerTimeoutMs(), TimeUnit.MILLISECONDS);
+
+            for (final Entry<Key, Value> kv : scanner) {
+                cells.put(kv.getKey(), kv.getValue());
+            }
+        } catch (final TableNotFoundException ex) {
+            logger.error("Could not find Accumulo table " + tableName, ex);
+        }
+
+        return cells;
+    }
+
+    /**
+     * Queues a single cell without reading the row first. See {@link #writeAsync(TBase, byte[], String, String)} for
+     * when queued writes become durable.
+     */
+    public ListenableFuture<Void> putCellAsync(byte[] rowId, String visibility, String appFamily, String qualifier,
+            byte[] value) {
+        final SettableFuture<Void> future = SettableFuture.create();
+        try {
+            final Mutation mutation = new Mutation(new Text(rowId));
+            mutation.put(appFamily, qualifier, new ColumnVisibility(visibility), new Value(value));
+            writer.addMutation(mutation);
+        } catch (final MutationsRejectedException ex) {
+            future.setException(ex);
+            return future;
+        }
+
+        return queue(future);
+    }
+
+    /**
+     * Queues the deletion of a single cell. The visibility must be the one the cell was written with.
+     */
+    public ListenableFuture<Void> deleteCellAsync(byte[] rowId, String visibility, String appFamily,
+            String qualifier) {
+        final SettableFuture<Void> future = SettableFuture.create();
+        try {
+            final Mutation mutation = new Mutation(new Text(rowId));
+            mutation.putDelete(new Text(appFamily), new Text(qualifier), new ColumnVisibility(visibility));
+            writer.addMutation(mutation);
+        } catch (final MutationsRejectedException ex) {
+            future.setException(ex);
+            return future;
+        }
+
+        return queue(future);
+    }
+
+    /**
+     * Deserializes a value stored with the Length + Piece_ chunk layout from the cells of one row and family.
+     *
+     * @return The value or null if the stored length is zero
+     */
+    <T extends TBase<?, ?>> T deserialize(Class<T> clazz, SortedMap<Key, Value> chunkCells) throws IOException,
+            TException {
+        try (ChunkedValueInputStream stream =
+                new ChunkedValueInputStream(chunkCells.entrySet().iterator(), LENGTH_QUALIFIER,
+                        COLUMN_QUALIFIER_PREFIX)) {
+            if (stream.getLength() == 0) {
+                return null;
+            }
+
+            final byte[] bytes = new byte[stream.getLength()];
+            IOUtils.readFully(stream, bytes);
+            return ThriftUtils.deserialize(clazz, bytes);
+        }
+    }
+
+    static boolean isChunkQualifier(String qualifier) {
+        return qualifier.equals(LENGTH_QUALIFIER) || qualifier.startsWith(COLUMN_QUALIFIER_PREFIX);
+    }
+
+    public boolean exists(byte[] rowId, String authorizations) {
+        return exists(rowId, authorizations, IMAGE_CHUNK_FAMILY);
+    }
+
+    /**
+     * Checks whether a chunked value exists without reading its chunks.
+     */
+    public boolean exists(byte[] rowId, String authorizations, String appFamily) {
+        try {
+            final Scanner scanner = connector.createScanner(tableName, getAuthsFromString(authorizations));
+            scanner.fetchColumn(new Text(appFamily), new Text(LENGTH_QUALIFIER));
+            scanner.setRange(new Range(new Text(rowId)));
+            scanner.setTimeout(storeConfig.getScannerTimeoutMs(), TimeUnit.MILLISECONDS);
+
+            return scanner.iterator().hasNext();
+        } catch (final TableNotFoundException ex) {
+            logger.error("Could not find Accumulo table " + tableName, ex);
+        }
+
+        return false;
+    }
+
+    /**
+     * Reads the visibility a chunked value was written with, without reading its chunks.
+     *
+     * @return The formal visibility expression or null if no visible value exists
+     */
+    public String readVisibility(byte[] rowId, String authorizations, String appFamily) {
+        try {
+            final Scanner scanner = connector.createScanner(tableName, getAuthsFromString(authorizations));
+            scanner.fetchColumn(new Text(appFamily), new Text(LENGTH_QUALIFIER));
+            scanner.setRange(new Range(new Text(rowId)));
+            scanner.setTimeout(storeConfig.getScannerTimeoutMs(), TimeUnit.MILLISECONDS);
+
+            final Iterator<Entry<Key, Value>> lengths = scanner.iterator();
+            if (lengths.hasNext()) {
+                return lengths.next().getKey().getColumnVisibility().toString();
+            }
+        } catch (final TableNotFoundException ex) {
+            logger.error("Could not find Accumulo table " + tableName, ex);
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the visibilities many chunked values were written with in a single batch scan, without reading their
+     * chunks.
+     *
+     * @return Formal visibility expressions keyed by the hex form of their row ID. Rows without a visible value are
+     *         omitted.
+     */
+    public Map<String, String> readVisibilities(Collection<byte[]> rowIds, String authorizations, String appFamily) {
+        final Map<String, String> visibilities = new HashMap<>();
+        if (rowIds.isEmpty()) {
+            return visibilities;
+        }
+
+        BatchScanner scanner = null;
+        try {
+            scanner =
+                    connector.createBatchScanner(tableName, getAuthsFromString(authorizations),
+                            storeConfig.getQueryThreads());
+            scanner.setTimeout(storeConfig.getScannerTimeoutMs(), TimeUnit.MILLISECONDS);
+            scanner.fetchColumn(new Text(appFamily), new Text(LENGTH_QUALIFIER));
+
+            final List<Range> ranges = new ArrayList<>(rowIds.size());
+            for (final byte[] rowId : rowIds) {
+                ranges.add(new Range(new Text(rowId)));
+            }
+            scanner.setRanges(ranges);
+
+            for (final Entry<Key, Value> length : scanner) {
+                visibilities.put(bytesToHex(length.getKey().getRow().copyBytes()),
+                        length.getKey().getColumnVisibility().toString());
+            }
+        } catch (final TableNotFoundException ex) {
+            logger.error("Could not find Accumulo table " + tableName, ex);
+        } finally {
+            if (scanner != null) {
+                scanner.close();
+            }
+        }
+
+        return visibilities;
+    }
+
+    /**
+     * Opens a stream over a chunked value. Each Piece_ cell is fetched from the tablet server only once the previous
+     * one has been consumed, so the memory needed to read a value is bounded by the chunk size rather than by the
+     * size of the whole value.
+     *
+     * @param rowId Row of the value
+     * @param authorizations Comma-separated authorizations to scan with
+     * @param appFamily Column family of the value
+     * @return Stream over the serialized value or null if no value exists
+     * @throws IOException If the stored chunks are malformed
+     */
+    public ChunkedValueInputStream openStream(byte[] rowId, String authorizations, String appFamily)
+            throws IOException {
+        return openStream(rowId, authorizations, appFamily, storeConfig.getStreamBatchSize());
+    }
+
+    private ChunkedValueInputStream openStream(byte[] rowId, String authorizations, String appFamily, int batchSize)
+            throws IOException {
+        logger.debug("Reading authorization = {}", authorizations);
+        try {
+            final Scanner scanner = connector.createScanner(tableName, getAuthsFromString(authorizations));
+            scanner.fetchColumnFamily(new Text(appFamily));
+            scanner.setRange(new Range(new Text(rowId)));
+            scanner.setBatchSize(batchSize);
+            scanner.setReadaheadThreshold(storeConfig.getScannerReadAheadThreshold());
+            scanner.setTimeout(storeConfig.getScannerTimeoutMs(), TimeUnit.MILLISECONDS);
+
+            final Iterator<Entry<Key, Value>> chunks = scanner.iterator();
+            if (!chunks.hasNext()) {
+                return null;
+            }
+
+            return new ChunkedValueInputStream(chunks, LENGTH_QUALIFIER, COLUMN_QUALIFIER_PREFIX);
+        } catch (final TableNotFoundException ex) {
+            logger.error("Could not find Accumulo table " + tableName, ex);
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes a single object and waits until it is durable. Writers of many objects should use
+     * {@link #writeAsync} and flush once instead.
+     *
+     * @throws IOException If the write was rejected or could not be flushed
+     */
     public void write(TBase<?, ?> t, byte[] rowId, String visibility) throws IOException, TException {
         write(t, rowId, visibility, IMAGE_CHUNK_FAMILY);
     }
 
     public void write(TBase<?, ?> t, byte[] rowId, String visibility, String appFamily) throws IOException,
             TException {
-        write(t, rowId, visibility, DEFAULT_CHUNK_SIZE, appFamily);
+        write(t, rowId, visibility, storeConfig.getChunkSizeMB(), appFamily);
     }
 
     public void write(TBase<?, ?> t, byte[] rowId, String visibility, int chunkInMB, String appFamily)
@@ -126,13 +556,86 @@ public class AccumuloThriftReaderWriter {
         write(ThriftUtils.serialize(t), rowId, visibility, chunkInMB, appFamily);
     }
 
+    /**
+     * Queues a write without waiting for it to reach the tablet servers, so that mutations for many objects can be
+     * sent together. Queued writes are sent when the writer's memory buffer fills, when {@link #flush()} is called,
+     * or at the latest after the configured flush interval.
+     *
+     * @return Future that completes once the write is durable, or fails if the write was rejected
+     */
+    public ListenableFuture<Void> writeAsync(TBase<?, ?> t, byte[] rowId, String visibility, String appFamily)
+            throws TException {
+        final SettableFuture<Void> future = SettableFuture.create();
+        try {
+            addMutations(ThriftUtils.serialize(t), rowId, visibility, storeConfig.getChunkSizeMB(), appFamily);
+        } catch (final MutationsRejectedException ex) {
+            future.setException(ex);
+            return future;
+        }
+
+        return queue(future);
+    }
+
+    public ListenableFuture<Void> writeAsync(TBase<?, ?> t, byte[] rowId, String visibility) throws TException {
+        return writeAsync(t, rowId, visibility, IMAGE_CHUNK_FAMILY);
+    }
+
+    /**
+     * Sends all queued writes to the tablet servers and waits until they are durable. Callers should flush at
+     * processing stage boundaries, before anything else is told that the data is available.
+     * <p>
+     * Concurrent calls are grouped: a call made while another flush is running waits for it to end and then joins
+     * the next flush together with every other call that arrived meanwhile, so writes of many images share one round
+     * trip without delaying a lone caller.
+     */
+    public void flush() throws IOException {
+        final FlushRound round;
+        synchronized (flushLock) {
+            final long request = ++flushRequests;
+            try {
+                while (flushRound != null) {
+                    if (flushRound.coveredRequests >= request) {
+                        awaitRound(flushRound);
+                        return;
+                    }
+
+                    flushLock.wait();
+                }
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for Accumulo flush");
+            }
+
+            round = new FlushRound(flushRequests);
+            flushRound = round;
+        }
+
+        IOException failure = null;
+        try {
+            flushPending();
+        } catch (final IOException ex) {
+            failure = ex;
+        }
+
+        synchronized (flushLock) {
+            round.done = true;
+            round.failure = failure;
+            flushRound = null;
+            flushLock.notifyAll();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     public void delete(byte[] rowIDbyte) throws IOException {
         try {
             final Text rowID = new Text(rowIDbyte);
             final Mutation mutation = new Mutation(rowID);
             mutation.put(new Text(), new Text(), new ColumnVisibility(), RowDeletingIterator.DELETE_ROW_VALUE);
             writer.addMutation(mutation);
-            writer.flush();
+            flush();
         } catch (final Exception ex) {
             ex.printStackTrace();
             logger.error("Error in deleting Accumulo row.");
@@ -153,13 +656,20 @@ public class AccumuloThriftReaderWriter {
                 deleter.putDelete(entry.getKey().getColumnFamily(), entry.getKey().getColumnQualifier());
             }
             writer.addMutation(deleter);
-            writer.flush();
+            flush();
         } catch (final Exception ex) {
             logger.error("Error delete row", ex);
         }
     }
 
     public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flushPending();
+        } catch (final IOException ex) {
+            logger.error("Could not flush queued writes on close", ex);
+        }
+
         try {
             writer.close();
         } catch (final Exception ex) {
@@ -185,125 +695,150 @@ public class AccumuloThriftReaderWriter {
 
         try {
             operations.create(tableName);
-            final String splitBitsKey = "accumulo.splitBits";
-            int splitBits = 0;
-            try {
-                final String splitBitsString = config.getProperty(splitBitsKey);
-                if (splitBitsString != null) {
-                    splitBits = Integer.parseInt(splitBitsString);
-                }
-            } catch (final NumberFormatException e) {
-                logger.warn("Invalid number given for config key " + splitBitsKey);
-            }
-
-            if (splitBits > 0) {
-                operations.addSplits(tableName, getSplits(splitBits));
+            final SortedSet<Text> splits = getInitialSplits();
+            if (!splits.isEmpty()) {
+                operations.addSplits(tableName, splits);
             }
 
             operations.attachIterator(tableName, new IteratorSetting(1, RowDeletingIterator.class));
+            tableSettings.apply(operations, tableName);
         } catch (final Exception ex) {
             logger.error("Error in create Accumulo table.");
         }
     }
 
-    private SortedSet<Text> getSplits(int splitBits) {
-        Preconditions.checkArgument(splitBits <= Byte.SIZE);
+    /**
+     * Plans splits from the expected image count if one is configured, or else from the older
+     * {@code accumulo.splitBits} setting of 2^splitBits tablets.
+     */
+    private SortedSet<Text> getInitialSplits() {
+        final SplitPlanner planner = new SplitPlanner(config);
+        if (planner.getExpectedImages() > 0) {
+            return planner.getSplits();
+        }
 
-        final int splitMax = 1 << splitBits;
-        final int splitOffset = Byte.SIZE - splitBits;
+        final String splitBitsKey = "accumulo.splitBits";
+        int splitBits = 0;
+        try {
+            final String splitBitsString = config.getProperty(splitBitsKey);
+            if (splitBitsString != null) {
+                splitBits = Integer.parseInt(splitBitsString);
+            }
+        } catch (final NumberFormatException e) {
+            logger.warn("Invalid number given for config key " + splitBitsKey);
+        }
 
-        final SortedSet<Text> splits = new TreeSet<>();
+        Preconditions.checkArgument(splitBits <= Byte.SIZE);
+        return SplitPlanner.getSplits(1 << Math.max(0, splitBits));
+    }
 
-        final byte[] key = new byte[1];
-        for (int i = 1; i < splitMax; i++) {
-            key[0] = (byte) (i << splitOffset);
-            splits.add(new Text(key));
+    private void write(byte[] bytes, byte[] rowIDbyte, String visibility, int chunkInMB, String appFamily)
+            throws IOException {
+        try {
+            addMutations(bytes, rowIDbyte, visibility, chunkInMB, appFamily);
+        } catch (final MutationsRejectedException ex) {
+            final String errMsg = "Could not write row " + bytesToHex(rowIDbyte) + " to Accumulo";
+            logger.error(errMsg, ex);
+            throw new IOException(errMsg, ex);
         }
-        return splits;
+
+        flush();
     }
 
-    private byte[] read(byte[] rowId, String authorizations, String appFamily) throws IOException {
-        logger.debug("Reading authorization = {}", authorizations);
-        try {
-            final Scanner scanner = connector.createScanner(tableName, getAuthsFromString(authorizations));
-            scanner.fetchColumnFamily(new Text(appFamily));
+    private void addMutations(byte[] bytes, byte[] rowIDbyte, String visibility, int chunkInMB, String appFamily)
+            throws MutationsRejectedException {
+        logger.debug("Size of thrift object is {}", bytes.length);
+        writer.addMutations(createMutations(bytes, rowIDbyte, visibility, chunkInMB, appFamily));
+    }
 
-            final Range range = new Range(new Text(rowId));
-            scanner.setRange(range);
+    /**
+     * Creates the mutations that store a value with the Length + Piece_ chunk layout, one mutation per chunk.
+     */
+    static List<Mutation> createMutations(byte[] bytes, byte[] rowIDbyte, String visibility, int chunkInMB,
+            String appFamily) {
+        final int nBytes = bytes.length;
+        final int chunkSize = chunkInMB > 0 ? chunkInMB * 1024 * 1024 : nBytes;
+        final ColumnVisibility vis = new ColumnVisibility(visibility);
 
-            ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.SIZE / Byte.SIZE);
-            int n = -1;
-            int bufferSize = 0;
-            for (final Entry<Key, Value> kv : scanner) {
-                final Key key = kv.getKey();
-                final byte[] bytes = kv.getValue().get();
-                if (++n == 0) {
-                    if (!key.getColumnQualifier().toString().equals(LENGTH_QUALIFIER)) {
-                        throw new IOException("The column qulifier for first k/v pair must be " + LENGTH_QUALIFIER);
-                    }
+        final Text rowID = new Text(rowIDbyte);
+        final List<Mutation> mutations = new ArrayList<>();
 
-                    byteBuffer.put(bytes);
-                    bufferSize = byteBuffer.getInt(0);
-                    byteBuffer = ByteBuffer.allocate(bufferSize);
-                    continue;
-                }
+        // write image length
+        {
+            final Mutation mutation = new Mutation(rowID);
+            final ByteBuffer byteBuffer = ByteBuffer.allocate(4);
+            byteBuffer.putInt(nBytes);
+            mutation.put(appFamily, LENGTH_QUALIFIER, vis, new Value(byteBuffer.array()));
+            mutations.add(mutation);
+        }
 
-                if (!key.getColumnQualifier().toString()
-                        .equals(String.format("%s%04d", COLUMN_QUALIFIER_PREFIX, n - 1))) {
-                    throw new IOException("The column qualifier is not in right order.");
+        final int nChunk = nBytes / chunkSize;
+        for (int i = 0; i < nChunk + 1; i++) {
+            int size = chunkSize;
+            if (i == nChunk) {
+                size = nBytes % chunkSize;
+                if (size == 0) {
+                    break;
                 }
-
-                byteBuffer.put(bytes);
             }
-
-            final byte[] dataBuffer = bufferSize == 0 ? null : byteBuffer.array();
-            return dataBuffer;
-        } catch (final TableNotFoundException ex) {
-            logger.error("Could not find Accumulo table " + tableName, ex);
+            final Mutation mutation = new Mutation(rowID);
+            final String colQualifier = String.format("%s%04d", COLUMN_QUALIFIER_PREFIX, i);
+            mutation.put(appFamily, colQualifier, vis, new Value(bytes, i * chunkSize, size));
+            mutations.add(mutation);
         }
 
-        return null;
+        return mutations;
     }
 
-    private void write(byte[] bytes, byte[] rowIDbyte, String visibility, int chunkInMB, String appFamily)
-            throws IOException {
-        // makesureTableExist();
+    /**
+     * Flushes the batch writer and completes the futures of every queued write that was added before the flush.
+     */
+    private void flushPending() throws IOException {
+        final List<SettableFuture<Void>> flushed;
+        synchronized (pendingWrites) {
+            flushed = new ArrayList<>(pendingWrites);
+            pendingWrites.clear();
+        }
 
         try {
-            final int nBytes = bytes.length;
-            logger.debug("Size of thrift object is {}", nBytes);
+            writer.flush();
+        } catch (final MutationsRejectedException ex) {
+            for (final SettableFuture<Void> future : flushed) {
+                future.setException(ex);
+            }
 
-            final int chunkSize = chunkInMB > 0 ? chunkInMB * 1024 * 1024 : nBytes;
-            final ColumnVisibility vis = new ColumnVisibility(visibility);
+            throw new IOException("Accumulo rejected mutations", ex);
+        }
 
-            final Text rowID = new Text(rowIDbyte);
+        for (final SettableFuture<Void> future : flushed) {
+            future.set(null);
+        }
+    }
 
-            // write image length
-            {
-                final Mutation mutation = new Mutation(rowID);
-                final ByteBuffer byteBuffer = ByteBuffer.allocate(4);
-                byteBuffer.putInt(nBytes);
-                mutation.put(appFamily, LENGTH_QUALIFIER, vis, new Value(byteBuffer.array()));
-                writer.addMutation(mutation);
-            }
+    /**
+     * Waits for a running flush that covers the caller's request. Callers must hold the flush lock.
+     */
+    private void awaitRound(FlushRound round) throws IOException, InterruptedException {
+        while (!round.done) {
+            flushLock.wait();
+        }
 
-            final int nChunk = nBytes / chunkSize;
-            for (int i = 0; i < nChunk + 1; i++) {
-                int size = chunkSize;
-                if (i == nChunk) {
-                    size = nBytes % chunkSize;
-                    if (size == 0) {
-                        break;
-                    }
-                }
-                final Mutation mutation = new Mutation(rowID);
-                final String colQualifier = String.format("%s%04d", COLUMN_QUALIFIER_PREFIX, i);
-                mutation.put(appFamily, colQualifier, vis, new Value(bytes, i * chunkSize, size));
-                writer.addMutation(mutation);
-            }
-            writer.flush();
-        } catch (final Exception ex) {
-            ex.printStackTrace();
+        if (round.failure != null) {
+            throw new IOException(round.failure.getMessage(), round.failure.getCause());
+        }
+    }
+
+    private ListenableFuture<Void> queue(SettableFuture<Void> future) {
+        synchronized (pendingWrites) {
+            pendingWrites.add(future);
+        }
+
+        return future;
+    }
+
+    private boolean hasPendingWrites() {
+        synchronized (pendingWrites) {
+            return !pendingWrites.isEmpty();
         }
     }
 }
@@ -0,0 +1,269 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.TableExistsException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+
+import ezbake.data.image.frack.utilities.AsyncImageBinaryStore;
+
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.Visibility;
+import ezbake.common.properties.EzProperties;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IndexingStatus;
+import ezbake.services.indexing.image.thrift.Thumbnail;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+/**
+ * {@link AsyncImageBinaryStore} that runs the calls of an {@link AccumuloImageStore} on a bounded pool of I/O
+ * threads, so callers do not hold a thread for each outstanding scan.
+ * <p>
+ * Concurrent reads of the same image, thumbnail size or status with the same authorizations share one scan: a read
+ * that arrives while an identical one is still running is completed with the running read's result. Every caller gets
+ * its own future, so cancelling one leaves the others waiting for the read. The values of a shared read are the same
+ * objects for every caller, so callers must not modify them. Calls made while the pool's queue is
+ * full fail with a {@link RejectedExecutionException}.
+ */
+public class AsyncAccumuloImageStore implements AsyncImageBinaryStore {
+    /**
+     * Number of threads running Accumulo calls. Defaults to 16.
+     */
+    public static final String IO_THREADS_KEY = "image.store.async.ioThreads";
+
+    /**
+     * Number of calls that may wait for an I/O thread before new calls are rejected. Defaults to 1000.
+     */
+    public static final String MAX_QUEUED_KEY = "image.store.async.maxQueued";
+
+    // Completes the futures of the callers of a shared read on the thread that completed the read
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final AccumuloImageStore store;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, ListenableFuture<Image>> imageReads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ListenableFuture<Thumbnail>> thumbnailReads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ListenableFuture<IndexingStatus>> statusReads = new ConcurrentHashMap<>();
+
+    public AsyncAccumuloImageStore(Properties config) throws AccumuloException, AccumuloSecurityException,
+            TableExistsException, TableNotFoundException {
+        this(new AccumuloImageStore(config), config);
+    }
+
+    public AsyncAccumuloImageStore(AccumuloImageStore store, Properties config) {
+        this(store, createExecutor(config));
+    }
+
+    /**
+     * @param store Store to run the calls on
+     * @param executor Executor to run the calls on. It is shut down when this store is closed.
+     */
+    public AsyncAccumuloImageStore(AccumuloImageStore store, ExecutorService executor) {
+        this.store = store;
+        this.executor = executor;
+    }
+
+    @Override
+    public ListenableFuture<Void> addImage(final Image image, final String imageId, final Visibility visibility,
+            final String... types) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                store.addImage(image, imageId, visibility, types);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Image> getImage(final String imageId, final Authorizations auths) {
+        return coalesce(imageReads, getReadKey(imageId, auths), new Callable<Image>() {
+            @Override
+            public Image call() {
+                return store.getImage(imageId, auths);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Thumbnail> getThumbnail(final String imageId, final Authorizations auths,
+            final ThumbnailSize size) {
+        return coalesce(thumbnailReads, getReadKey(imageId, auths) + '/' + size.name(), new Callable<Thumbnail>() {
+            @Override
+            public Thumbnail call() {
+                return store.getThumbnail(imageId, auths, size);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<IndexingStatus> getIndexingStatus(final String imageId, final Authorizations auths) {
+        return coalesce(statusReads, getReadKey(imageId, auths), new Callable<IndexingStatus>() {
+            @Override
+            public IndexingStatus call() {
+                return store.getIndexingStatus(imageId, auths);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> deleteImage(final String imageId, final Authorizations auths) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                store.deleteImage(imageId, auths);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits for queued calls to finish, for up to a minute, then closes the underlying store.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            store.close();
+        }
+    }
+
+    private static ExecutorService createExecutor(Properties config) {
+        final EzProperties ezProps = new EzProperties(config, false);
+        final int threads = ezProps.getInteger(IO_THREADS_KEY, 16);
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(ezProps.getInteger(MAX_QUEUED_KEY, 1000)),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("image-store-io-%d").build());
+    }
+
+    /**
+     * Reads are only shared between callers with the same authorizations, so every caller sees only what its own
+     * authorizations allow.
+     */
+    private static String getReadKey(String imageId, Authorizations auths) {
+        return bytesToHex(hexToBytes(imageId)) + '/'
+                + Joiner.on(',').join(new TreeSet<>(auths.getFormalAuthorizations()));
+    }
+
+    /**
+     * Joins a running read with the same key, or starts the read. The read is forgotten before its future completes,
+     * so later callers never get a result that was read before they asked.
+     *
+     * @return A future of the caller's own, completed with the result of the shared read
+     */
+    private <T> ListenableFuture<T> coalesce(final ConcurrentMap<String, ListenableFuture<T>> reads, final String key,
+            final Callable<T> read) {
+        final SettableFuture<T> future = SettableFuture.create();
+        final ListenableFuture<T> running = reads.putIfAbsent(key, future);
+        if (running != null) {
+            return forCaller(running);
+        }
+
+        execute(future, new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return read.call();
+                } finally {
+                    reads.remove(key, future);
+                }
+            }
+        });
+
+        if (future.isDone()) {
+            reads.remove(key, future);
+        }
+
+        return forCaller(future);
+    }
+
+    /**
+     * @return A future completed with the outcome of a shared read. Cancelling it does not cancel the shared read,
+     *         which other callers may still be waiting for.
+     */
+    private static <T> ListenableFuture<T> forCaller(final ListenableFuture<T> shared) {
+        final SettableFuture<T> future = SettableFuture.create();
+        shared.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.set(Uninterruptibles.getUninterruptibly(shared));
+                } catch (final ExecutionException ex) {
+                    future.setException(ex.getCause());
+                }
+            }
+        }, DIRECT_EXECUTOR);
+
+        return future;
+    }
+
+    private <T> ListenableFuture<T> submit(Callable<T> call) {
+        final SettableFuture<T> future = SettableFuture.create();
+        execute(future, call);
+        return future;
+    }
+
+    private <T> void execute(final SettableFuture<T> future, final Callable<T> call) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.set(call.call());
+                    } catch (final Throwable ex) {
+                        future.setException(ex);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            future.setException(ex);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+
+/**
+ * Input stream over a value stored with the Length + Piece_NNNN chunk layout. Chunks are pulled from the underlying
+ * scan only when the previous one has been consumed, so at most one chunk is held in memory at a time.
+ */
+public class ChunkedValueInputStream extends InputStream {
+    private final Iterator<Entry<Key, Value>> chunks;
+    private final String chunkQualifierPrefix;
+    private final int length;
+
+    private byte[] chunk = new byte[0];
+    private int chunkPos;
+    private int chunkIndex;
+    private int remaining;
+
+    public ChunkedValueInputStream(Iterator<Entry<Key, Value>> chunks, String lengthQualifier,
+            String chunkQualifierPrefix) throws IOException {
+        this.chunks = chunks;
+        this.chunkQualifierPrefix = chunkQualifierPrefix;
+
+        if (!chunks.hasNext()) {
+            throw new IOException("No length entry found for chunked value");
+        }
+
+        final Entry<Key, Value> first = chunks.next();
+        if (!first.getKey().getColumnQualifier().toString().equals(lengthQualifier)) {
+            throw new IOException("The column qulifier for first k/v pair must be " + lengthQualifier);
+        }
+
+        length = ByteBuffer.wrap(first.getValue().get()).getInt();
+        remaining = length;
+    }
+
+    /**
+     * @return Total number of bytes in the chunked value
+     */
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureChunk()) {
+            return -1;
+        }
+
+        remaining--;
+        return chunk[chunkPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!ensureChunk()) {
+            return -1;
+        }
+
+        final int count = Math.min(len, chunk.length - chunkPos);
+        System.arraycopy(chunk, chunkPos, b, off, count);
+        chunkPos += count;
+        remaining -= count;
+
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - chunkPos;
+    }
+
+    private boolean ensureChunk() throws IOException {
+        while (chunkPos == chunk.length) {
+            if (remaining <= 0 || !chunks.hasNext()) {
+                if (remaining > 0) {
+                    throw new IOException("Chunked value ended " + remaining + " bytes early");
+                }
+
+                return false;
+            }
+
+            final Entry<Key, Value> kv = chunks.next();
+            final String expectedQualifier = String.format("%s%04d", chunkQualifierPrefix, chunkIndex++);
+            if (!kv.getKey().getColumnQualifier().toString().equals(expectedQualifier)) {
+                throw new IOException("The column qualifier is not in right order.");
+            }
+
+            chunk = kv.getValue().get();
+            chunkPos = 0;
+        }
+
+        return true;
+    }
+}
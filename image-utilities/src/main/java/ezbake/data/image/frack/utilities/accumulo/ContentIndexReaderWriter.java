@@ -0,0 +1,146 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.thrift.TException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
+import ezbake.thrift.ThriftUtils;
+
+/**
+ * Maps the content-only hash of an image to the row that holds its canonical copy, and records every further
+ * occurrence of that content as a reference on the canonical row instead of storing the bytes again.
+ * <p>
+ * Index and reference cells carry the visibility of the image they describe, and the index qualifier records that
+ * visibility as well. A canonical row is only reused for an image with exactly the same visibility, so content that
+ * is also stored under a stricter marking is never linked to from a less restricted document; such an image is
+ * stored again under its own visibility.
+ * <p>
+ * The stored copy is shared by the document it was first ingested from and by every reference, so it may only be
+ * deleted together with its index cell once no references remain.
+ */
+public class ContentIndexReaderWriter {
+    static final String CONTENT_INDEX_FAMILY = "Content_Index";
+    static final String REFERENCE_FAMILY = "Image_Reference";
+    static final String CANONICAL_QUALIFIER = "Canonical";
+
+    private final AccumuloThriftReaderWriter accumuloReaderWriter;
+
+    public ContentIndexReaderWriter(AccumuloThriftReaderWriter accumuloReaderWriter) {
+        this.accumuloReaderWriter = accumuloReaderWriter;
+    }
+
+    /**
+     * @param contentHash Content-only hash of the image bytes
+     * @param visibility Formal visibility the new occurrence of the image will be stored under
+     * @param authorizations Comma-separated authorizations of the caller
+     * @return Row ID of a stored canonical copy of the content with the same visibility or null if there is none
+     */
+    public byte[] getCanonicalRowId(byte[] contentHash, String visibility, String authorizations) {
+        final SortedMap<Key, Value> cells =
+                accumuloReaderWriter.readCells(contentHash, authorizations, CONTENT_INDEX_FAMILY);
+
+        final String qualifier = canonicalQualifier(visibility);
+        for (final Map.Entry<Key, Value> cell : cells.entrySet()) {
+            if (!qualifier.equals(cell.getKey().getColumnQualifier().toString())) {
+                continue;
+            }
+
+            final byte[] rowId = cell.getValue().get();
+            // The canonical image may have been deleted since it was indexed
+            if (accumuloReaderWriter.exists(rowId, authorizations)) {
+                return rowId;
+            }
+        }
+
+        return null;
+    }
+
+    public ListenableFuture<Void> putCanonicalRowId(byte[] contentHash, byte[] rowId, String visibility) {
+        return accumuloReaderWriter.putCellAsync(contentHash, visibility, CONTENT_INDEX_FAMILY,
+                canonicalQualifier(visibility), rowId);
+    }
+
+    /**
+     * Removes the index cell of a canonical copy that is being deleted. Cells naming another row are kept, since the
+     * same content may have been stored again without deduplication.
+     */
+    public void removeCanonicalRowId(byte[] contentHash, byte[] rowId, String visibility, String authorizations) {
+        final SortedMap<Key, Value> cells =
+                accumuloReaderWriter.readCells(contentHash, authorizations, CONTENT_INDEX_FAMILY);
+
+        final String qualifier = canonicalQualifier(visibility);
+        for (final Map.Entry<Key, Value> cell : cells.entrySet()) {
+            final Key key = cell.getKey();
+            if (qualifier.equals(key.getColumnQualifier().toString()) && Arrays.equals(rowId, cell.getValue().get())) {
+                accumuloReaderWriter.deleteCellAsync(contentHash, key.getColumnVisibility().toString(),
+                        CONTENT_INDEX_FAMILY, qualifier);
+            }
+        }
+    }
+
+    /**
+     * Builds the index qualifier for canonical copies stored under a visibility. The expression is normalized so
+     * that equivalent markings such as {@code A&B} and {@code B&A} share one canonical copy.
+     */
+    public static String canonicalQualifier(String visibility) {
+        final byte[] normalized = new ColumnVisibility(visibility).flatten();
+        return CANONICAL_QUALIFIER + '/' + new String(normalized, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Records another occurrence of the canonical image, such as the same picture embedded in another document.
+     */
+    public ListenableFuture<Void> addReference(byte[] canonicalRowId, IngestedImageInfo reference) throws TException {
+        return accumuloReaderWriter.putCellAsync(canonicalRowId, reference.getVisibility().getFormalVisibility(),
+                REFERENCE_FAMILY, referenceQualifier(reference), ThriftUtils.serialize(reference));
+    }
+
+    /**
+     * Removes a reference read with {@link #getReferences}.
+     */
+    public ListenableFuture<Void> removeReference(byte[] canonicalRowId, IngestedImageInfo reference) {
+        return accumuloReaderWriter.deleteCellAsync(canonicalRowId, reference.getVisibility().getFormalVisibility(),
+                REFERENCE_FAMILY, referenceQualifier(reference));
+    }
+
+    static String referenceQualifier(IngestedImageInfo reference) {
+        return reference.getOrigDocumentUri() + '/' + reference.getFileName();
+    }
+
+    public List<IngestedImageInfo> getReferences(byte[] canonicalRowId, String authorizations) throws TException {
+        final SortedMap<Key, Value> cells =
+                accumuloReaderWriter.readCells(canonicalRowId, authorizations, REFERENCE_FAMILY);
+
+        final List<IngestedImageInfo> references = new ArrayList<>(cells.size());
+        for (final Value value : cells.values()) {
+            references.add(ThriftUtils.deserialize(IngestedImageInfo.class, value.get()));
+        }
+
+        return references;
+    }
+}
@@ -0,0 +1,171 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.conf.Property;
+import org.apache.accumulo.core.file.keyfunctor.RowFunctor;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+/**
+ * Table properties of the ImageStore table. They are applied when the table is created, and can be applied again to
+ * an existing table with {@link AccumuloThriftReaderWriter#applyTableSettings(boolean)}.
+ * <p>
+ * Accumulo chooses the RFile compression codec per table, not per locality group. The default stays {@code gz}, as
+ * Accumulo uses for tables that do not set a codec. Deployments whose table is mostly original image chunks and
+ * JPEG/PNG thumbnails, which are already compressed, can opt in to {@code none} to save the CPU spent compressing
+ * them again, at the cost of storing status and index cells uncompressed.
+ * <p>
+ * Original image chunks, thumbnails, indexing status and the content index are kept in separate locality groups, so
+ * thumbnail and status reads do not seek through blocks of multi-megabyte originals.
+ * <p>
+ * Every read is a lookup of a single row, and many miss, such as status reads before the first write, so row bloom
+ * filters and the index and data block caches are enabled by default. Bloom filters are only written to new files,
+ * so existing tables need a compaction after the settings are applied.
+ */
+public class ImageStoreTableSettings {
+    public static final String COMPRESSION_KEY = "accumulo.table.compression";
+    public static final String LOCALITY_GROUPS_KEY = "accumulo.table.localityGroups";
+    public static final String BLOOM_FILTER_KEY = "accumulo.table.bloomFilter";
+    public static final String INDEX_CACHE_KEY = "accumulo.table.indexCache";
+    public static final String DATA_CACHE_KEY = "accumulo.table.dataCache";
+
+    public static final String ORIGINALS_GROUP = "originals";
+    public static final String THUMBNAILS_GROUP = "thumbnails";
+    public static final String STATUS_GROUP = "status";
+    public static final String CONTENT_INDEX_GROUP = "contentIndex";
+
+    private static final Logger logger = getLogger(ImageStoreTableSettings.class);
+    private static final List<String> COMPRESSION_CODECS = Arrays.asList("none", "gz", "snappy", "lzo");
+    private static final String DEFAULT_COMPRESSION = "gz";
+
+    private final String compression;
+    private final boolean localityGroupsEnabled;
+    private final boolean bloomFilterEnabled;
+    private final boolean indexCacheEnabled;
+    private final boolean dataCacheEnabled;
+
+    public ImageStoreTableSettings(Properties config) {
+        String codec = config.getProperty(COMPRESSION_KEY, DEFAULT_COMPRESSION).trim();
+        if (!COMPRESSION_CODECS.contains(codec)) {
+            logger.warn("Invalid compression codec given for config key " + COMPRESSION_KEY);
+            codec = DEFAULT_COMPRESSION;
+        }
+
+        compression = codec;
+        localityGroupsEnabled = getBoolean(config, LOCALITY_GROUPS_KEY);
+        bloomFilterEnabled = getBoolean(config, BLOOM_FILTER_KEY);
+        indexCacheEnabled = getBoolean(config, INDEX_CACHE_KEY);
+        dataCacheEnabled = getBoolean(config, DATA_CACHE_KEY);
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public boolean isLocalityGroupsEnabled() {
+        return localityGroupsEnabled;
+    }
+
+    public boolean isBloomFilterEnabled() {
+        return bloomFilterEnabled;
+    }
+
+    public boolean isIndexCacheEnabled() {
+        return indexCacheEnabled;
+    }
+
+    public boolean isDataCacheEnabled() {
+        return dataCacheEnabled;
+    }
+
+    /**
+     * @return Locality group names and the column families in each, or an empty map if locality groups are disabled
+     */
+    public Map<String, Set<Text>> getLocalityGroups() {
+        if (!localityGroupsEnabled) {
+            return Collections.emptyMap();
+        }
+
+        final Set<Text> thumbnailFamilies = new HashSet<>();
+        for (final ThumbnailSize size : ThumbnailSize.values()) {
+            thumbnailFamilies.add(new Text(size.name()));
+        }
+
+        final Set<Text> contentIndexFamilies = new HashSet<>();
+        contentIndexFamilies.add(new Text(ContentIndexReaderWriter.CONTENT_INDEX_FAMILY));
+        contentIndexFamilies.add(new Text(ContentIndexReaderWriter.REFERENCE_FAMILY));
+
+        final Map<String, Set<Text>> groups = new LinkedHashMap<>();
+        groups.put(ORIGINALS_GROUP, Collections.singleton(new Text(AccumuloThriftReaderWriter.IMAGE_CHUNK_FAMILY)));
+        groups.put(THUMBNAILS_GROUP, thumbnailFamilies);
+        groups.put(STATUS_GROUP, Collections.singleton(new Text(IndexingStatusReaderWriter.STATUS_FAMILY)));
+        groups.put(CONTENT_INDEX_GROUP, contentIndexFamilies);
+        return groups;
+    }
+
+    /**
+     * @return Accumulo table property names and the values these settings give them
+     */
+    public Map<String, String> getTableProperties() {
+        final Map<String, String> properties = new LinkedHashMap<>();
+        properties.put(Property.TABLE_FILE_COMPRESSION_TYPE.getKey(), compression);
+        properties.put(Property.TABLE_BLOOM_ENABLED.getKey(), String.valueOf(bloomFilterEnabled));
+        if (bloomFilterEnabled) {
+            // Lookups are by whole row, so the filter is keyed on the row alone
+            properties.put(Property.TABLE_BLOOM_KEY_FUNCTOR.getKey(), RowFunctor.class.getName());
+        }
+
+        properties.put(Property.TABLE_INDEXCACHE_ENABLED.getKey(), String.valueOf(indexCacheEnabled));
+        properties.put(Property.TABLE_BLOCKCACHE_ENABLED.getKey(), String.valueOf(dataCacheEnabled));
+        return properties;
+    }
+
+    /**
+     * Sets the table properties and locality groups on a table. Files already written keep their old settings until
+     * they are compacted.
+     */
+    public void apply(TableOperations operations, String tableName) throws AccumuloException,
+            AccumuloSecurityException, TableNotFoundException {
+        for (final Map.Entry<String, String> property : getTableProperties().entrySet()) {
+            operations.setProperty(tableName, property.getKey(), property.getValue());
+        }
+
+        if (localityGroupsEnabled) {
+            operations.setLocalityGroups(tableName, getLocalityGroups());
+        }
+    }
+
+    private static boolean getBoolean(Properties config, String key) {
+        return Boolean.parseBoolean(config.getProperty(key, "true").trim());
+    }
+}
@@ -14,16 +14,37 @@
 
 package ezbake.data.image.frack.utilities.accumulo;
 
+import static org.slf4j.LoggerFactory.getLogger;
+
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
 import org.apache.thrift.TException;
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ListenableFuture;
 
 import ezbake.services.indexing.image.thrift.IndexingStage;
 import ezbake.services.indexing.image.thrift.IndexingStatus;
 
+/**
+ * Records indexing progress as one cell per completed stage (qualifier {@code Stage_<name>}) in the IndexingStatus
+ * family, so stages can be added blindly without reading the current status. Rows written before this layout, which
+ * hold a whole serialized {@link IndexingStatus}, are still read and merged with any stage cells.
+ */
 public class IndexingStatusReaderWriter {
-    private static final String STATUS_FAMILY = "IndexingStatus";
+    static final String STATUS_FAMILY = "IndexingStatus";
+    static final String STAGE_QUALIFIER_PREFIX = "Stage_";
+    static final byte[] EMPTY_VALUE = new byte[0];
+
+    private static final Logger logger = getLogger(IndexingStatusReaderWriter.class);
 
     private final AccumuloThriftReaderWriter accumuloReaderWriter;
 
@@ -31,26 +52,42 @@ public class IndexingStatusReaderWriter {
         this.accumuloReaderWriter = accumuloReaderWriter;
     }
 
-    public void addCompletedStage(byte[] rowId, String visibility, String authorizations, IndexingStage completedStage)
-            throws IOException, TException {
-        final IndexingStatus status = getStatus(rowId, authorizations);
-        if (!status.getCompletedStages().contains(completedStage)) {
-            status.addToCompletedStages(completedStage);
-        }
-
-        if (status.getCompletedStagesSize() == IndexingStage.values().length) {
-            status.setCompleted(true);
-        }
-
-        accumuloReaderWriter.write(status, rowId, visibility, STATUS_FAMILY);
+    /**
+     * Queues the completed stage without reading the current status. The returned future completes once the write is
+     * durable; call {@link AccumuloThriftReaderWriter#flush()} at a stage boundary to force it.
+     */
+    public ListenableFuture<Void> addCompletedStage(byte[] rowId, String visibility, IndexingStage completedStage) {
+        return accumuloReaderWriter.putCellAsync(rowId, visibility, STATUS_FAMILY,
+                STAGE_QUALIFIER_PREFIX + completedStage.name(), EMPTY_VALUE);
     }
 
     public IndexingStatus getStatus(byte[] rowId, String authorizations) throws IOException, TException {
-        IndexingStatus status = accumuloReaderWriter.read(IndexingStatus.class, rowId, authorizations, STATUS_FAMILY);
-        if (status == null) {
-            status = new IndexingStatus(new ArrayList<IndexingStage>(), false);
+        return toStatus(accumuloReaderWriter.readCells(rowId, authorizations, STATUS_FAMILY));
+    }
+
+    private IndexingStatus toStatus(SortedMap<Key, Value> cells) throws IOException, TException {
+        final Set<IndexingStage> stages = EnumSet.noneOf(IndexingStage.class);
+        final SortedMap<Key, Value> legacyCells = new TreeMap<>();
+        for (final Entry<Key, Value> cell : cells.entrySet()) {
+            final String qualifier = cell.getKey().getColumnQualifier().toString();
+            if (qualifier.startsWith(STAGE_QUALIFIER_PREFIX)) {
+                try {
+                    stages.add(IndexingStage.valueOf(qualifier.substring(STAGE_QUALIFIER_PREFIX.length())));
+                } catch (final IllegalArgumentException ex) {
+                    logger.warn("Ignoring unknown indexing stage {}", qualifier);
+                }
+            } else if (AccumuloThriftReaderWriter.isChunkQualifier(qualifier)) {
+                legacyCells.put(cell.getKey(), cell.getValue());
+            }
+        }
+
+        if (!legacyCells.isEmpty()) {
+            final IndexingStatus legacy = accumuloReaderWriter.deserialize(IndexingStatus.class, legacyCells);
+            if (legacy != null && legacy.isSetCompletedStages()) {
+                stages.addAll(legacy.getCompletedStages());
+            }
         }
 
-        return status;
+        return new IndexingStatus(new ArrayList<IndexingStage>(stages), stages.size() == IndexingStage.values().length);
     }
 }
@@ -0,0 +1,284 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.conf.AccumuloConfiguration;
+import org.apache.accumulo.core.conf.ConfigurationCopy;
+import org.apache.accumulo.core.conf.Property;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.file.FileOperations;
+import org.apache.accumulo.core.file.FileSKVWriter;
+import org.apache.accumulo.core.file.rfile.RFile;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+
+import ezbake.services.indexing.image.thrift.IndexingStage;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
+import ezbake.thrift.ThriftUtils;
+
+/**
+ * Writes ImageStore cells to sorted RFiles instead of sending them through a batch writer, and bulk imports the files
+ * into the table. Cells use the same chunk layout, families and locality groups as {@link AccumuloThriftReaderWriter}
+ * and the status and content index writers.
+ * <p>
+ * Cells are buffered in memory in sorted order and written to a new RFile whenever the buffer reaches its limit. The
+ * work directory is resolved against the default Hadoop file system and must be readable by the tablet servers.
+ */
+public class RFileImageWriter implements Closeable {
+    private static final Logger logger = getLogger(RFileImageWriter.class);
+
+    private final AccumuloThriftReaderWriter target;
+    private final FileSystem fs;
+    private final Path workDir;
+    private final long maxBufferBytes;
+    private final AccumuloConfiguration fileConfig;
+    private final Map<Text, String> familyGroups = new HashMap<>();
+    private final Map<String, Set<ByteSequence>> groupFamilies = new LinkedHashMap<>();
+
+    private SortedMap<Key, Value> buffer = new TreeMap<>();
+    private long bufferBytes;
+    private int importCount;
+    private int importAttempt;
+    private int fileCount;
+
+    /**
+     * @param target Reader/writer of the table the files are imported into
+     * @param workDirectory Directory the RFiles are written to before they are imported
+     * @param maxBufferBytes Approximate number of bytes of cells to hold in memory before writing a file
+     */
+    public RFileImageWriter(AccumuloThriftReaderWriter target, String workDirectory, long maxBufferBytes)
+            throws IOException {
+        this.target = target;
+        this.fs = FileSystem.get(new Configuration());
+        this.workDir = new Path(workDirectory);
+        this.maxBufferBytes = maxBufferBytes;
+
+        // Write files with the table's codec so they need no recompression after the import
+        final ImageStoreTableSettings tableSettings = target.getTableSettings();
+        final ConfigurationCopy config = new ConfigurationCopy(AccumuloConfiguration.getDefaultConfiguration());
+        config.set(Property.TABLE_FILE_COMPRESSION_TYPE, tableSettings.getCompression());
+        this.fileConfig = config;
+
+        for (final Map.Entry<String, Set<Text>> group : tableSettings.getLocalityGroups().entrySet()) {
+            final Set<ByteSequence> families = new HashSet<>();
+            for (final Text family : group.getValue()) {
+                familyGroups.put(family, group.getKey());
+                families.add(new ArrayByteSequence(family.copyBytes()));
+            }
+
+            groupFamilies.put(group.getKey(), families);
+        }
+
+        fs.mkdirs(getImportDir());
+    }
+
+    /**
+     * Adds a Thrift object stored with the Length + Piece_ chunk layout under a family.
+     */
+    public void addChunked(TBase<?, ?> t, byte[] rowId, String visibility, String appFamily) throws IOException,
+            TException {
+        addMutations(AccumuloThriftReaderWriter.createMutations(ThriftUtils.serialize(t), rowId, visibility,
+                target.getStoreConfig().getChunkSizeMB(), appFamily));
+    }
+
+    /**
+     * Adds an original image, stored in the same family as {@link AccumuloThriftReaderWriter#write}.
+     */
+    public void addImage(TBase<?, ?> image, byte[] rowId, String visibility) throws IOException, TException {
+        addChunked(image, rowId, visibility, AccumuloThriftReaderWriter.IMAGE_CHUNK_FAMILY);
+    }
+
+    public void addCompletedStage(byte[] rowId, String visibility, IndexingStage completedStage) throws IOException {
+        addCell(rowId, visibility, IndexingStatusReaderWriter.STATUS_FAMILY,
+                IndexingStatusReaderWriter.STAGE_QUALIFIER_PREFIX + completedStage.name(),
+                IndexingStatusReaderWriter.EMPTY_VALUE);
+    }
+
+    public void addCanonicalRowId(byte[] contentHash, byte[] rowId, String visibility) throws IOException {
+        addCell(contentHash, visibility, ContentIndexReaderWriter.CONTENT_INDEX_FAMILY,
+                ContentIndexReaderWriter.canonicalQualifier(visibility), rowId);
+    }
+
+    /**
+     * Adds a reference to a canonical image, stored like {@link ContentIndexReaderWriter#addReference}.
+     */
+    public void addReference(byte[] canonicalRowId, IngestedImageInfo reference) throws IOException, TException {
+        addCell(canonicalRowId, reference.getVisibility().getFormalVisibility(),
+                ContentIndexReaderWriter.REFERENCE_FAMILY, ContentIndexReaderWriter.referenceQualifier(reference),
+                ThriftUtils.serialize(reference));
+    }
+
+    /**
+     * Writes any buffered cells and bulk imports every file written since the last import. If some files could not be
+     * imported they are kept, and calling this again retries them.
+     *
+     * @return The number of files imported
+     */
+    public int importFiles() throws IOException {
+        writeFile();
+        if (fileCount == 0) {
+            return 0;
+        }
+
+        // Accumulo needs an empty failure directory, so every attempt gets its own
+        final Path importDir = getImportDir();
+        final Path failureDir = new Path(workDir, String.format("failures-%05d-%03d", importCount, importAttempt++));
+        fs.mkdirs(failureDir);
+
+        try {
+            target.importDirectory(importDir.toString(), failureDir.toString());
+        } catch (AccumuloException | AccumuloSecurityException | TableNotFoundException ex) {
+            throw new IOException("Could not import files from " + importDir, ex);
+        }
+
+        final FileStatus[] failed = fs.listStatus(failureDir);
+        if (failed.length > 0) {
+            // Move the files back so the next attempt imports them again
+            for (final FileStatus file : failed) {
+                fs.rename(file.getPath(), new Path(importDir, file.getPath().getName()));
+            }
+
+            throw new IOException(failed.length + " files from " + importDir + " could not be imported");
+        }
+
+        final int imported = fileCount;
+        logger.info("Imported {} files from {}", imported, importDir);
+
+        importCount++;
+        importAttempt = 0;
+        fileCount = 0;
+        fs.mkdirs(getImportDir());
+        return imported;
+    }
+
+    /**
+     * Imports any remaining cells.
+     */
+    @Override
+    public void close() throws IOException {
+        importFiles();
+    }
+
+    private void addCell(byte[] rowId, String visibility, String family, String qualifier, byte[] value)
+            throws IOException {
+        final Mutation mutation = new Mutation(new Text(rowId));
+        mutation.put(family, qualifier, new ColumnVisibility(visibility), new Value(value));
+        addMutations(Collections.singletonList(mutation));
+    }
+
+    private void addMutations(List<Mutation> mutations) throws IOException {
+        final long timestamp = System.currentTimeMillis();
+        for (final Mutation mutation : mutations) {
+            for (final ColumnUpdate update : mutation.getUpdates()) {
+                final Key key =
+                        new Key(mutation.getRow(), update.getColumnFamily(), update.getColumnQualifier(),
+                                update.getColumnVisibility(), timestamp);
+                buffer.put(key, new Value(update.getValue()));
+                bufferBytes += key.getSize() + update.getValue().length;
+            }
+        }
+
+        if (bufferBytes >= maxBufferBytes) {
+            writeFile();
+        }
+    }
+
+    /**
+     * Writes the buffer to a new RFile, with the cells of each locality group written to that group.
+     */
+    private void writeFile() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        final Map<String, SortedMap<Key, Value>> groupCells = new HashMap<>();
+        final SortedMap<Key, Value> defaultCells = new TreeMap<>();
+        for (final Map.Entry<Key, Value> cell : buffer.entrySet()) {
+            final String group = familyGroups.get(cell.getKey().getColumnFamily());
+            SortedMap<Key, Value> cells = defaultCells;
+            if (group != null) {
+                cells = groupCells.get(group);
+                if (cells == null) {
+                    cells = new TreeMap<>();
+                    groupCells.put(group, cells);
+                }
+            }
+
+            cells.put(cell.getKey(), cell.getValue());
+        }
+
+        final Path file = new Path(getImportDir(), String.format("images-%05d.%s", fileCount, RFile.EXTENSION));
+        final FileSKVWriter out =
+                FileOperations.getInstance().openWriter(file.toString(), fs, fs.getConf(), fileConfig);
+        try {
+            for (final Map.Entry<String, Set<ByteSequence>> group : groupFamilies.entrySet()) {
+                out.startNewLocalityGroup(group.getKey(), group.getValue());
+                final SortedMap<Key, Value> cells = groupCells.get(group.getKey());
+                if (cells != null) {
+                    append(out, cells);
+                }
+            }
+
+            out.startDefaultLocalityGroup();
+            append(out, defaultCells);
+        } finally {
+            out.close();
+        }
+
+        logger.info("Wrote {} cells to {}", buffer.size(), file);
+        fileCount++;
+        buffer = new TreeMap<>();
+        bufferBytes = 0;
+    }
+
+    private Path getImportDir() {
+        return new Path(workDir, String.format("import-%05d", importCount));
+    }
+
+    private static void append(FileSKVWriter out, SortedMap<Key, Value> cells) throws IOException {
+        for (final Map.Entry<Key, Value> cell : cells.entrySet()) {
+            out.append(cell.getKey(), cell.getValue());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Plans split points for the ImageStore table. Row IDs are SHA-256 hashes and so spread uniformly over the row
+ * space, which lets the planner cut the space into equal ranges sized from the expected number of images and the
+ * target tablet size.
+ * <p>
+ * Split points are the leading 4 bytes of evenly spaced positions in the row space with trailing zero bytes removed,
+ * so a power-of-two split count gives the same single-byte split points as the older {@code accumulo.splitBits}
+ * setting.
+ */
+public class SplitPlanner {
+    public static final String EXPECTED_IMAGES_KEY = "accumulo.split.expectedImages";
+    public static final String AVERAGE_IMAGE_BYTES_KEY = "accumulo.split.averageImageBytes";
+    public static final String TARGET_TABLET_BYTES_KEY = "accumulo.split.targetTabletBytes";
+    public static final String MAX_SPLITS_KEY = "accumulo.split.maxSplits";
+
+    private static final Logger logger = getLogger(SplitPlanner.class);
+    private static final int SPLIT_BYTES = 4;
+
+    private final long expectedImages;
+    private final long averageImageBytes;
+    private final long targetTabletBytes;
+    private final int maxSplits;
+
+    public SplitPlanner(Properties config) {
+        expectedImages = getLong(config, EXPECTED_IMAGES_KEY, 0);
+
+        // Original plus thumbnails, status and content index cells
+        averageImageBytes = getLong(config, AVERAGE_IMAGE_BYTES_KEY, 1024 * 1024);
+
+        // Accumulo's default split threshold
+        targetTabletBytes = getLong(config, TARGET_TABLET_BYTES_KEY, 1024L * 1024 * 1024);
+        maxSplits = (int) getLong(config, MAX_SPLITS_KEY, 65535);
+    }
+
+    public long getExpectedImages() {
+        return expectedImages;
+    }
+
+    /**
+     * @return The split points for the configured number of expected images, or an empty set if none was configured
+     */
+    public SortedSet<Text> getSplits() {
+        return getSplits(expectedImages);
+    }
+
+    /**
+     * @return The split points that keep tablets near the target size once the table holds the given number of images
+     */
+    public SortedSet<Text> getSplits(long imageCount) {
+        final long expectedBytes = imageCount * averageImageBytes;
+        final long tablets = Math.max(1, (expectedBytes + targetTabletBytes - 1) / targetTabletBytes);
+        return getSplits((int) Math.min(tablets, maxSplits + 1L));
+    }
+
+    /**
+     * @return The split points dividing the row space into the given number of equal ranges
+     */
+    public static SortedSet<Text> getSplits(int tablets) {
+        Preconditions.checkArgument(tablets > 0, "Tablet count must be positive");
+
+        final SortedSet<Text> splits = new TreeSet<>();
+        for (long i = 1; i < tablets; i++) {
+            final long position = (i << (SPLIT_BYTES * Byte.SIZE)) / tablets;
+
+            final byte[] split = new byte[SPLIT_BYTES];
+            for (int b = 0; b < SPLIT_BYTES; b++) {
+                split[b] = (byte) (position >>> ((SPLIT_BYTES - 1 - b) * Byte.SIZE));
+            }
+
+            int length = SPLIT_BYTES;
+            while (length > 1 && split[length - 1] == 0) {
+                length--;
+            }
+
+            splits.add(new Text(Arrays.copyOf(split, length)));
+        }
+
+        return splits;
+    }
+
+    private static long getLong(Properties config, String key, long defaultValue) {
+        final String valueString = config.getProperty(key);
+        if (valueString == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(valueString.trim());
+        } catch (final NumberFormatException e) {
+            logger.warn("Invalid number given for config key " + key);
+            return defaultValue;
+        }
+    }
+}
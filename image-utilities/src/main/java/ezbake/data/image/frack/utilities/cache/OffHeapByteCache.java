@@ -0,0 +1,244 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Cache of byte values held in direct buffers outside the Java heap, so it can grow to gigabytes without adding to
+ * garbage collection pauses. Only the key index is kept on the heap.
+ * <p>
+ * Capacity is split into equal segments that are filled in turn. When a value does not fit in the current segment,
+ * the next segment is reused and every entry in it is evicted at once. Values larger than a segment are not cached.
+ * <p>
+ * {@link #get(String)} copies the value out while holding the read lock, since a segment can be reused by a put as
+ * soon as the lock is released. The copy is kept rather than handing out a view of the segment: callers deserialize
+ * the value into heap objects anyway, and a view would have to pin its segment until the caller is done with it.
+ * <p>
+ * Values can be put in a group, such as all thumbnails of one image, and {@link #invalidateGroup(String)} drops the
+ * values of a group without looking at any other key.
+ */
+public class OffHeapByteCache {
+    private static final class Location {
+        private final String group;
+        private final int segment;
+        private final long generation;
+        private final int offset;
+        private final int length;
+
+        private Location(String group, int segment, long generation, int offset, int length) {
+            this.group = group;
+            this.segment = segment;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ByteBuffer[] segments;
+    private final long[] generations;
+    private final List<List<String>> segmentKeys;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    // Guarded by the write lock
+    private final Map<String, Set<String>> groupKeys = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private int current;
+
+    /**
+     * @param maxBytes Total bytes of direct memory to allocate. The JVM's direct memory limit must allow for it.
+     * @param segmentCount Number of segments the capacity is split into, which is also the fraction of the cache
+     *        evicted at a time
+     */
+    public OffHeapByteCache(long maxBytes, int segmentCount) {
+        Preconditions.checkArgument(segmentCount > 0, "Segment count must be positive");
+        final int segmentSize = (int) Math.min(Integer.MAX_VALUE, maxBytes / segmentCount);
+        Preconditions.checkArgument(segmentSize > 0, "Cache is too small for " + segmentCount + " segments");
+
+        segments = new ByteBuffer[segmentCount];
+        generations = new long[segmentCount];
+        segmentKeys = new ArrayList<>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = ByteBuffer.allocateDirect(segmentSize);
+            segmentKeys.add(new ArrayList<String>());
+        }
+    }
+
+    /**
+     * @return A copy of the value, or null if it is not cached
+     */
+    public byte[] get(String key) {
+        lock.readLock().lock();
+        try {
+            final Location location = index.get(key);
+            if (location == null || generations[location.segment] != location.generation) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            hits.incrementAndGet();
+            final ByteBuffer segment = segments[location.segment].duplicate();
+            segment.position(location.offset);
+            final byte[] value = new byte[location.length];
+            segment.get(value);
+            return value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies a value into the cache, replacing any value already cached for the key.
+     *
+     * @return false if the value is too large to cache
+     */
+    public boolean put(String key, byte[] value) {
+        return put(null, key, value);
+    }
+
+    /**
+     * Copies a value into the cache as a member of a group, replacing any value already cached for the key.
+     *
+     * @param group Group the value is dropped with by {@link #invalidateGroup(String)}, or null for none
+     * @return false if the value is too large to cache
+     */
+    public boolean put(String group, String key, byte[] value) {
+        lock.writeLock().lock();
+        try {
+            ByteBuffer segment = segments[current];
+            if (value.length > segment.capacity()) {
+                remove(key);
+                return false;
+            }
+
+            if (value.length > segment.remaining()) {
+                current = (current + 1) % segments.length;
+                evictSegment(current);
+                segment = segments[current];
+            }
+
+            final int offset = segment.position();
+            segment.put(value);
+            remove(key);
+            index.put(key, new Location(group, current, generations[current], offset, value.length));
+            segmentKeys.get(current).add(key);
+            if (group != null) {
+                Set<String> keys = groupKeys.get(group);
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    groupKeys.put(group, keys);
+                }
+
+                keys.add(key);
+            }
+
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void invalidate(String key) {
+        lock.writeLock().lock();
+        try {
+            remove(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops every value put in the group.
+     */
+    public void invalidateGroup(String group) {
+        lock.writeLock().lock();
+        try {
+            final Set<String> keys = groupKeys.remove(group);
+            if (keys != null) {
+                for (final String key : keys) {
+                    index.remove(key);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Number of values currently cached
+     */
+    public int size() {
+        return index.size();
+    }
+
+    private void evictSegment(int segment) {
+        final long generation = generations[segment];
+        for (final String key : segmentKeys.get(segment)) {
+            final Location location = index.get(key);
+            // The key may since have been replaced by a value in another segment
+            if (location != null && location.segment == segment && location.generation == generation) {
+                remove(key);
+                evictions.incrementAndGet();
+            }
+        }
+
+        segmentKeys.get(segment).clear();
+        generations[segment]++;
+        segments[segment].clear();
+    }
+
+    /**
+     * Removes a key from the index and its group. Callers must hold the write lock.
+     */
+    private void remove(String key) {
+        final Location location = index.remove(key);
+        if (location != null && location.group != null) {
+            final Set<String> keys = groupKeys.get(location.group);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    groupKeys.remove(location.group);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.ingest;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import static ezbake.data.image.frack.utilities.ImageUtils.createThumbnails;
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getContentHash;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getImageId;
+import static ezbake.data.image.frack.utilities.accumulo.AccumuloStoreConfig.INGEST_PROFILE;
+import static ezbake.data.image.frack.utilities.ingest.EmbeddedImageExtractor.extractImages;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.thrift.TException;
+import org.apache.tika.exception.TikaException;
+import org.slf4j.Logger;
+import org.xml.sax.SAXException;
+
+import ezbake.data.image.frack.utilities.accumulo.AccumuloThriftReaderWriter;
+import ezbake.data.image.frack.utilities.accumulo.ContentIndexReaderWriter;
+import ezbake.data.image.frack.utilities.accumulo.RFileImageWriter;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.common.properties.EzProperties;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.extractor.imagemetadata.thrift.InvalidImageException;
+import ezbake.services.indexing.image.thrift.IndexingStage;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
+import ezbake.services.indexing.image.thrift.Thumbnail;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+/**
+ * Offline ingest for backfills. Extracts the images of documents, creates their thumbnails and writes the images,
+ * thumbnails and their indexing status to RFiles, which are bulk imported into the ImageStore table by
+ * {@link #importFiles()} or {@link #close()}.
+ * <p>
+ * Unlike {@link PipelineDocumentIngester}, documents are not stored in Warehaus and images are not broadcast to the
+ * pipeline, so no metadata is extracted. The returned image information can be broadcast once the files are imported
+ * to have it extracted.
+ * <p>
+ * Images are deduplicated like the online path: an image whose content is already stored under the same visibility,
+ * either in the table or earlier in this run, is recorded as a reference to that copy instead of being stored again.
+ */
+public class BulkDocumentIngester implements Closeable {
+    /**
+     * Approximate number of bytes of cells held in memory before they are written to an RFile. Defaults to 256 MB.
+     */
+    public static final String MAX_BUFFER_BYTES_KEY = "image.bulk.maxBufferBytes";
+
+    /**
+     * Comma-separated authorizations used to find copies of an image already stored in the table. Defaults to none,
+     * in which case images are only deduplicated within the run.
+     */
+    public static final String AUTHORIZATIONS_KEY = "image.bulk.authorizations";
+
+    private static final Logger logger = getLogger(BulkDocumentIngester.class);
+
+    private final AccumuloThriftReaderWriter accumuloReaderWriter;
+    private final boolean ownsReaderWriter;
+    private final RFileImageWriter fileWriter;
+    private final boolean deduplicate;
+    private final ContentIndexReaderWriter contentIndex;
+    private final String authorizations;
+    private final String defaultThumbnailType;
+
+    /**
+     * Canonical copies written in this run, which are not in the table until the files are imported. Keyed by content
+     * hash and canonical qualifier.
+     */
+    private final Map<String, byte[]> canonicalRowIds = new HashMap<>();
+
+    /**
+     * @param workDirectory Directory the RFiles are written to before they are imported. It must be readable by the
+     *        tablet servers.
+     */
+    public BulkDocumentIngester(Properties props, String workDirectory) throws IOException {
+        this(createReaderWriter(props), true, props, workDirectory);
+    }
+
+    public BulkDocumentIngester(AccumuloThriftReaderWriter accumuloReaderWriter, Properties props,
+            String workDirectory) throws IOException {
+        this(accumuloReaderWriter, false, props, workDirectory);
+    }
+
+    private BulkDocumentIngester(AccumuloThriftReaderWriter accumuloReaderWriter, boolean ownsReaderWriter,
+            Properties props, String workDirectory) throws IOException {
+        final EzProperties ezProps = new EzProperties(props, false);
+        this.accumuloReaderWriter = accumuloReaderWriter;
+        this.ownsReaderWriter = ownsReaderWriter;
+        this.fileWriter =
+                new RFileImageWriter(accumuloReaderWriter, workDirectory, ezProps.getLong(MAX_BUFFER_BYTES_KEY,
+                        256L * 1024 * 1024));
+        this.deduplicate = ezProps.getBoolean(PipelineDocumentIngester.DEDUPLICATE_KEY, true);
+        this.contentIndex = new ContentIndexReaderWriter(accumuloReaderWriter);
+        this.authorizations = props.getProperty(AUTHORIZATIONS_KEY, "");
+        this.defaultThumbnailType = props.getProperty("thumbnail.type", "jpg");
+    }
+
+    /**
+     * Extracts the images of a document and adds them to the files to import.
+     *
+     * @param documentUri URI the images are recorded as coming from
+     * @return Information about the images added
+     */
+    public List<IngestedImageInfo> addDocument(InputStream document, String fileName, final String documentUri,
+            final Visibility visibility) throws IOException, SAXException, TikaException {
+        final List<IngestedImageInfo> added = new ArrayList<>();
+        extractImages(document, fileName, documentUri, new ImageSink() {
+            @Override
+            public void accept(Image image) throws IOException {
+                try {
+                    added.add(addImage(image, documentUri, visibility));
+                } catch (final TException | NoSuchAlgorithmException e) {
+                    throw new IOException("Could not add image " + image.getFileName(), e);
+                }
+            }
+        });
+
+        logger.info("Added {} images from {}", added.size(), fileName);
+        return added;
+    }
+
+    /**
+     * Writes any buffered cells and bulk imports the files written so far.
+     */
+    public void importFiles() throws IOException {
+        fileWriter.importFiles();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            fileWriter.close();
+        } finally {
+            if (ownsReaderWriter) {
+                accumuloReaderWriter.close();
+            }
+        }
+    }
+
+    private IngestedImageInfo addImage(Image image, String documentUri, Visibility visibility) throws IOException,
+            TException, NoSuchAlgorithmException {
+        final String formalVisibility = visibility.getFormalVisibility();
+        final String fileName = image.getFileName();
+        final byte[] imageHash = getImageId(image);
+
+        if (deduplicate) {
+            final byte[] contentHash = getContentHash(image.getBlob());
+            final String canonicalKey =
+                    bytesToHex(contentHash) + '/' + ContentIndexReaderWriter.canonicalQualifier(formalVisibility);
+
+            byte[] canonicalRowId = canonicalRowIds.get(canonicalKey);
+            if (canonicalRowId == null) {
+                canonicalRowId = contentIndex.getCanonicalRowId(contentHash, formalVisibility, authorizations);
+            }
+
+            if (canonicalRowId != null) {
+                final IngestedImageInfo reference = new IngestedImageInfo();
+                reference.setOrigDocumentUri(documentUri);
+                reference.setVisibility(visibility);
+                reference.setImageId(bytesToHex(canonicalRowId));
+                reference.setMimeType(image.getMimeType());
+                reference.setSize(image.getBlob().length);
+                reference.setFileName(fileName);
+
+                logger.info("Image {} is a duplicate of {}, recording reference only", fileName,
+                        reference.getImageId());
+
+                fileWriter.addReference(canonicalRowId, reference);
+                return reference;
+            }
+
+            canonicalRowIds.put(canonicalKey, imageHash);
+            fileWriter.addCanonicalRowId(contentHash, imageHash, formalVisibility);
+        }
+
+        fileWriter.addImage(image, imageHash, formalVisibility);
+        fileWriter.addCompletedStage(imageHash, formalVisibility, IndexingStage.EXTRACTED_FROM_DOC);
+        fileWriter.addCompletedStage(imageHash, formalVisibility, IndexingStage.BINARY_SAVED);
+
+        final String type =
+                fileName == null ? defaultThumbnailType : fileName.substring(fileName.lastIndexOf('.') + 1);
+        Map<ThumbnailSize, Thumbnail> thumbnails = null;
+        try {
+            thumbnails = createThumbnails(image, type);
+        } catch (IOException | InvalidImageException ex) {
+            logger.error("Could not create thumbnails for image " + fileName, ex);
+        }
+
+        if (thumbnails != null) {
+            for (final Map.Entry<ThumbnailSize, Thumbnail> thumbnail : thumbnails.entrySet()) {
+                fileWriter.addChunked(thumbnail.getValue(), imageHash, formalVisibility, thumbnail.getKey().name());
+            }
+
+            fileWriter.addCompletedStage(imageHash, formalVisibility, IndexingStage.THUMBNAILS_GENERATED);
+        }
+
+        final IngestedImageInfo ingestedImageInfo = new IngestedImageInfo();
+        ingestedImageInfo.setOrigDocumentUri(documentUri);
+        ingestedImageInfo.setVisibility(visibility);
+        ingestedImageInfo.setImageId(bytesToHex(imageHash));
+        ingestedImageInfo.setMimeType(image.getMimeType());
+        ingestedImageInfo.setSize(image.getBlob().length);
+        ingestedImageInfo.setFileName(fileName);
+        return ingestedImageInfo;
+    }
+
+    private static AccumuloThriftReaderWriter createReaderWriter(Properties props) throws IOException {
+        try {
+            return new AccumuloThriftReaderWriter(props, INGEST_PROFILE);
+        } catch (final Exception ex) {
+            throw new IOException("Cannot open Accumulo writer", ex);
+        }
+    }
+}
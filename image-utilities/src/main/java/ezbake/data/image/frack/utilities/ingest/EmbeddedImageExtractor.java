@@ -47,23 +47,49 @@ public class EmbeddedImageExtractor implements EmbeddedDocumentExtractor {
     private final Parser parser;
     private final String containerFileName;
     private final String origDocUri;
+    private final ImageSink sink;
     private final List<Image> extractedImages = new ArrayList<>();
     private int imageCount = 1;
+    private boolean foundImages;
 
     private static MediaType getMediaType(InputStream stream) throws IOException {
         return new DefaultDetector().detect(stream, new Metadata());
     }
 
     public EmbeddedImageExtractor(Parser parser, String containerFileName, String origDocUri) {
+        this(parser, containerFileName, origDocUri, null);
+    }
+
+    /**
+     * @param sink Receives each image as soon as it is found. If null, images are collected and available from
+     *        {@link #getExtractedImages()}.
+     */
+    public EmbeddedImageExtractor(Parser parser, String containerFileName, String origDocUri, ImageSink sink) {
         this.parser = parser;
         this.containerFileName = containerFileName;
         this.origDocUri = origDocUri;
+        this.sink = sink;
     }
 
     public static List<Image> getImages(InputStream stream, String fileName, String origDocUri) throws IOException,
             SAXException, TikaException {
         final List<Image> imageInfos = new ArrayList<>();
+        extractImages(stream, fileName, origDocUri, new ImageSink() {
+            @Override
+            public void accept(Image image) {
+                imageInfos.add(image);
+            }
+        });
 
+        return imageInfos;
+    }
+
+    /**
+     * Extracts the images from a document and pushes each one to the sink as soon as it is found, in document order.
+     * Nothing is retained by the extractor, so memory use does not grow with the number of images.
+     */
+    public static void extractImages(InputStream stream, String fileName, String origDocUri, ImageSink sink)
+            throws IOException, SAXException, TikaException {
         final MediaType contentType = getMediaType(stream);
         if (contentType.getType().equals("image")) {
             final Image image = new Image();
@@ -71,17 +97,15 @@ public class EmbeddedImageExtractor implements EmbeddedDocumentExtractor {
             image.setFileName(fileName);
             image.setOriginalDocumentUri(origDocUri);
             image.setMimeType(contentType.toString());
-            imageInfos.add(image);
+            sink.accept(image);
         } else {
             final Parser parser = new AutoDetectParser();
-            final EmbeddedImageExtractor imageExtractor = new EmbeddedImageExtractor(parser, fileName, origDocUri);
+            final EmbeddedImageExtractor imageExtractor =
+                    new EmbeddedImageExtractor(parser, fileName, origDocUri, sink);
             final ParseContext context = new ParseContext();
             context.set(EmbeddedDocumentExtractor.class, imageExtractor);
             parser.parse(stream, new DefaultHandler(), new Metadata(), context);
-            imageInfos.addAll(imageExtractor.getExtractedImages());
         }
-
-        return imageInfos;
     }
 
     @Override
@@ -144,7 +168,12 @@ public class EmbeddedImageExtractor implements EmbeddedDocumentExtractor {
             }
 
             logger.debug("Found image with name '{}' in '{}'", imageName, containerFileName);
-            extractedImages.add(image);
+            foundImages = true;
+            if (sink == null) {
+                extractedImages.add(image);
+            } else {
+                sink.accept(image);
+            }
 
             if (updateCount) {
                 imageCount++;
@@ -155,11 +184,12 @@ public class EmbeddedImageExtractor implements EmbeddedDocumentExtractor {
             logger.debug("Recursing into inner file '{}' in '{}'", resName, containerFileName);
             final ParseContext context = new ParseContext();
             final EmbeddedImageExtractor subExtractor =
-                    new EmbeddedImageExtractor(parser, name.toString(), origDocUri);
+                    new EmbeddedImageExtractor(parser, name.toString(), origDocUri, sink);
 
             context.set(EmbeddedDocumentExtractor.class, subExtractor);
             try {
                 parser.parse(stream, new DefaultHandler(), new Metadata(), context);
+                foundImages |= subExtractor.hasImages();
                 extractedImages.addAll(subExtractor.getExtractedImages());
             } catch (final TikaException e) {
                 logger.error("Could not parse sub-element '" + resName + "' in '" + containerFileName + "'", e);
@@ -173,7 +203,7 @@ public class EmbeddedImageExtractor implements EmbeddedDocumentExtractor {
     }
 
     public boolean hasImages() {
-        return !extractedImages.isEmpty();
+        return foundImages;
     }
 
     public List<Image> getExtractedImages() {
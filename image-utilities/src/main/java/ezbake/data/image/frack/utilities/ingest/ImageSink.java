@@ -0,0 +1,27 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.ingest;
+
+import java.io.IOException;
+
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+
+/**
+ * Receives images from {@link EmbeddedImageExtractor} as soon as they are found in a document, so they can be
+ * processed and released without holding every image of the document in memory.
+ */
+public interface ImageSink {
+    void accept(Image image) throws IOException;
+}
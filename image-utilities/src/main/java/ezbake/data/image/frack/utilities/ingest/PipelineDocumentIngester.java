@@ -14,29 +14,49 @@
 
 package ezbake.data.image.frack.utilities.ingest;
 
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 import static org.apache.commons.lang.RandomStringUtils.randomAlphanumeric;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
-import static ezbake.data.image.frack.utilities.IndexingUtils.getHash;
-import static ezbake.data.image.frack.utilities.ingest.EmbeddedImageExtractor.getImages;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getContentHash;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getImageId;
+import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+import static ezbake.data.image.frack.utilities.accumulo.AccumuloStoreConfig.INGEST_PROFILE;
+import static ezbake.data.image.frack.utilities.ingest.EmbeddedImageExtractor.extractImages;
 
 import static ezbake.common.openshift.OpenShiftUtil.inOpenShiftContainer;
 import static ezbake.data.common.classification.ClassificationUtils.extractUserAuths;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.thrift.TException;
 import org.apache.tika.exception.TikaException;
 import org.slf4j.Logger;
 import org.xml.sax.SAXException;
 
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import ezbake.data.image.frack.utilities.accumulo.AccumuloThriftReaderWriter;
+import ezbake.data.image.frack.utilities.accumulo.ContentIndexReaderWriter;
 import ezbake.data.image.frack.utilities.accumulo.IndexingStatusReaderWriter;
 import ezbake.data.image.frack.utilities.accumulo.WarehausWrapper;
 
@@ -56,99 +76,165 @@ import ezbake.services.indexing.image.thrift.IngestedImageInfo;
 import ezbake.thrift.ThriftClientPool;
 import ezbake.thrift.ThriftUtils;
 
-public class PipelineDocumentIngester implements DocumentIngester {
+public class PipelineDocumentIngester implements DocumentIngester, Closeable {
     public static final String TOPIC_NAME = "ImageIngest";
 
+    /**
+     * Topic for images small enough to be broadcast with their bytes as an {@link Image}, so pipeline workers do not
+     * have to read them back from Accumulo.
+     */
+    public static final String INLINE_TOPIC_NAME = "ImageIngestInline";
+
     public static final String URI_PREFIX = String.format("%s://%s/", ImageIndexerServiceConstants.SERVICE_NAME,
             TOPIC_NAME);
 
+    /**
+     * Whether images whose bytes are already stored are recorded as references to the stored copy instead of being
+     * stored and processed again. Defaults to true.
+     */
+    public static final String DEDUPLICATE_KEY = "image.ingest.deduplicate";
+
+    /**
+     * Number of images of a document that are hashed, stored and broadcast concurrently. Defaults to 4.
+     */
+    public static final String PARALLELISM_KEY = "image.ingest.parallelism";
+
+    /**
+     * Largest image in bytes that is broadcast inline on {@link #INLINE_TOPIC_NAME}. Defaults to 256 KB; 0 disables
+     * inline broadcasts.
+     */
+    public static final String INLINE_MAX_BYTES_KEY = "image.ingest.inlineMaxBytes";
+
     private static final Logger logger = getLogger(PipelineDocumentIngester.class);
 
+    private static final int CONTENT_LOCK_STRIPES = 64;
+
     private final Properties props;
     private final String groupId;
     private final ThriftClientPool pool;
     private final WarehausWrapper warehaus;
     private final AccumuloThriftReaderWriter accumuloThriftWriter;
     private final IndexingStatusReaderWriter statusWriter;
+    private final ContentIndexReaderWriter contentIndex;
+    private final boolean deduplicate;
+    private final ExecutorService imageExecutor;
+    private final int maxImagesInFlight;
+    private final int inlineMaxBytes;
+    private final Object[] contentLocks = new Object[CONTENT_LOCK_STRIPES];
+    // Broadcasters by topic and by the app the tokens they were created with were issued to. Guarded by itself.
+    private final Table<String, String, EzBroadcaster> broadcasters = HashBasedTable.create();
 
     public PipelineDocumentIngester(Properties props) {
+        this(props, new ThriftClientPool(props), new WarehausWrapper(URI_PREFIX, props), openWriter(props));
+    }
+
+    PipelineDocumentIngester(Properties props, ThriftClientPool pool, WarehausWrapper warehaus,
+            AccumuloThriftReaderWriter accumuloThriftWriter) {
         this.props = props;
         this.groupId = randomAlphanumeric(20);
-        this.pool = new ThriftClientPool(props);
-        this.warehaus = new WarehausWrapper(URI_PREFIX, props);
-
-        try {
-            this.accumuloThriftWriter = new AccumuloThriftReaderWriter(props);
-        } catch (final Exception ex) {
-            final String errMsg = "Cannot open Accumulo writer";
-            logger.error(errMsg, ex);
-            throw new RuntimeException(errMsg, ex);
-        }
-
+        this.pool = pool;
+        this.warehaus = warehaus;
+        this.accumuloThriftWriter = accumuloThriftWriter;
         this.statusWriter = new IndexingStatusReaderWriter(accumuloThriftWriter);
+        this.contentIndex = new ContentIndexReaderWriter(accumuloThriftWriter);
+        final EzProperties ezProps = new EzProperties(props, false);
+        this.deduplicate = ezProps.getBoolean(DEDUPLICATE_KEY, true);
+        final int parallelism = ezProps.getInteger(PARALLELISM_KEY, 4);
+        this.imageExecutor =
+                Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("image-ingest-%d").build());
+        this.maxImagesInFlight = parallelism * 2;
+        this.inlineMaxBytes = ezProps.getInteger(INLINE_MAX_BYTES_KEY, 256 * 1024);
+        for (int idx = 0; idx < contentLocks.length; idx++) {
+            contentLocks[idx] = new Object();
+        }
     }
 
+    /**
+     * Ingests the images of a document. An image that could not be ingested is still listed, in document order, but
+     * without an image ID.
+     */
     @Override
     public IngestedDocumentInfo ingestDocument(EzSecurityToken token, Document document) throws TException {
         final String userAuths = extractUserAuths(token);
         final Visibility visibility = document.getVisibility();
         final String fileName = document.getFileName();
         final byte[] fileContents = document.getBlob();
-        try (EzBroadcaster broadcaster = getBroadcaster(token)) {
+        try {
+            final EzBroadcaster broadcaster = getBroadcaster(token, TOPIC_NAME);
+            final EzBroadcaster inlineBroadcaster =
+                    inlineMaxBytes > 0 ? getBroadcaster(token, INLINE_TOPIC_NAME) : null;
             logger.info("Inserting {} into Warehaus", fileName);
             final String warehausUri = warehaus.put(fileContents, fileName, visibility);
             logger.info("Inserted {} into Warehaus with URI {}", fileName, warehausUri);
 
-            // Extract images from document
+            // Extract images from document, handing each one off for ingest as soon as it is found. Extraction
+            // blocks once too many images are in flight, so memory stays bounded however large the document is.
             logger.info("Extracting images from {}", fileName);
-            List<Image> extractedImages = null;
-            extractedImages = getImages(new ByteArrayInputStream(fileContents), fileName, warehausUri);
-            logger.info("Extracted {} images from {}", extractedImages.size(), fileName);
-
-            final List<IngestedImageInfo> ingestedImageInfos = new ArrayList<>(extractedImages.size());
-            for (final Image image : extractedImages) {
-                logger.info("Found image {} in {}", image.getFileName(), fileName);
-                final byte[] imageHash = getHash(image.getBlob(), image.getFileName());
-                final String imageIndex = bytesToHex(imageHash);
-
-                statusWriter.addCompletedStage(imageHash, visibility.getFormalVisibility(), userAuths,
-                        IndexingStage.EXTRACTED_FROM_DOC);
-
-                final IngestedImageInfo ingestedImageInfo = new IngestedImageInfo();
-                ingestedImageInfo.setOrigDocumentUri(warehausUri);
-                ingestedImageInfo.setVisibility(visibility);
-                ingestedImageInfo.setImageId(imageIndex);
-                ingestedImageInfo.setMimeType(image.getMimeType());
-                ingestedImageInfo.setSize(image.getBlob().length);
-                ingestedImageInfo.setFileName(image.getFileName());
-
-                ingestedImageInfos.add(ingestedImageInfo);
-
-                final IngestedImage ingestedImage = new IngestedImage();
-                ingestedImage.setImageInfo(ingestedImageInfo);
-                ingestedImage.setAuthorizations(userAuths);
-
-                logger.info("Writing image into Accumulo with index {} and visibility {}", imageIndex,
-                        visibility.getFormalVisibility());
-
-                accumuloThriftWriter.write(image, imageHash, visibility.getFormalVisibility());
-
-                statusWriter.addCompletedStage(imageHash, visibility.getFormalVisibility(), userAuths,
-                        IndexingStage.BINARY_SAVED);
+            final Semaphore inFlight = new Semaphore(maxImagesInFlight);
+            final List<String> imageNames = new ArrayList<>();
+            final List<Future<IngestedImageInfo>> pending = new ArrayList<>();
+            final List<IngestedImageInfo> ingestedImageInfos = new ArrayList<>();
+            int failures = 0;
+            try {
+                extractImages(new ByteArrayInputStream(fileContents), fileName, warehausUri, new ImageSink() {
+                    @Override
+                    public void accept(final Image image) throws IOException {
+                        try {
+                            inFlight.acquire();
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException(
+                                    "Interrupted while waiting to ingest " + image.getFileName());
+                        }
+
+                        imageNames.add(image.getFileName());
+                        pending.add(imageExecutor.submit(new Callable<IngestedImageInfo>() {
+                            @Override
+                            public IngestedImageInfo call() throws Exception {
+                                try {
+                                    return ingestImage(image, fileName, warehausUri, visibility, userAuths,
+                                            broadcaster, inlineBroadcaster);
+                                } finally {
+                                    inFlight.release();
+                                }
+                            }
+                        }));
+                    }
+                });
+                logger.info("Extracted {} images from {}", pending.size(), fileName);
+
+                // Collect in extraction order so the result matches the order of images in the document
+                for (int idx = 0; idx < pending.size(); idx++) {
+                    try {
+                        ingestedImageInfos.add(pending.get(idx).get());
+                    } catch (final ExecutionException e) {
+                        failures++;
+                        logger.error("Could not ingest image " + imageNames.get(idx) + " from " + fileName,
+                                e.getCause());
+
+                        final IngestedImageInfo failed = new IngestedImageInfo();
+                        failed.setOrigDocumentUri(warehausUri);
+                        failed.setVisibility(visibility);
+                        failed.setFileName(imageNames.get(idx));
+                        ingestedImageInfos.add(failed);
+                    }
+                }
+            } finally {
+                // No task of a failed document may keep storing and broadcasting its images after the call returns
+                awaitTasks(pending);
+            }
 
-                // Broadcast image to pipeline
-                broadcaster.broadcast(TOPIC_NAME, visibility, ThriftUtils.serialize(ingestedImage));
+            accumuloThriftWriter.flush();
 
-                statusWriter.addCompletedStage(imageHash, visibility.getFormalVisibility(), userAuths,
-                        IndexingStage.TO_PROCESSING_WORKERS);
+            if (failures > 0) {
+                logger.warn("{} of {} images from {} could not be ingested", failures, pending.size(), fileName);
             }
 
             final IngestedDocumentInfo ingested =
                     new IngestedDocumentInfo(warehausUri, ingestedImageInfos, visibility);
 
             ingested.setFileName(fileName);
-            broadcaster.unregisterFromTopic(TOPIC_NAME);
-
             return ingested;
         } catch (final IOException e) {
             logger.error("IO error", e);
@@ -158,21 +244,212 @@ public class PipelineDocumentIngester implements DocumentIngester {
             logger.error(errMsg, e);
             throw new TException(errMsg, e);
         } catch (final NoSuchAlgorithmException e) {
-            final String errMsg = "Could not create image ID for image from document " + fileName;
+            final String errMsg = "Could not create Warehaus ID for document " + fileName;
+            logger.error(errMsg, e);
+            throw new TException(errMsg, e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final String errMsg = "Interrupted while ingesting images from document " + fileName;
             logger.error(errMsg, e);
             throw new TException(errMsg, e);
         }
     }
 
-    @SuppressWarnings("resource")
-    private EzBroadcaster getBroadcaster(EzSecurityToken token) {
+    private IngestedImageInfo ingestImage(Image image, String fileName, String warehausUri, Visibility visibility,
+            String userAuths, EzBroadcaster broadcaster, EzBroadcaster inlineBroadcaster) throws IOException,
+            TException, NoSuchAlgorithmException {
+        logger.info("Found image {} in {}", image.getFileName(), fileName);
+
+        final IngestedImageInfo ingestedImageInfo = new IngestedImageInfo();
+        ingestedImageInfo.setOrigDocumentUri(warehausUri);
+        ingestedImageInfo.setVisibility(visibility);
+        ingestedImageInfo.setMimeType(image.getMimeType());
+        ingestedImageInfo.setSize(image.getBlob().length);
+        ingestedImageInfo.setFileName(image.getFileName());
+
+        if (!storeImage(image, ingestedImageInfo, userAuths)) {
+            logger.info("Image {} in {} is a duplicate of {}, recording reference only", image.getFileName(),
+                    fileName, ingestedImageInfo.getImageId());
+            return ingestedImageInfo;
+        }
+
+        final byte[] imageHash = hexToBytes(ingestedImageInfo.getImageId());
+
+        final IngestedImage ingestedImage = new IngestedImage();
+        ingestedImage.setImageInfo(ingestedImageInfo);
+        ingestedImage.setAuthorizations(userAuths);
+
+        // The original must be durable before any worker hears of it. Inline workers skip the read but still write
+        // thumbnails and stages next to it, which must never exist without the image they belong to.
+        accumuloThriftWriter.flush();
+
+        statusWriter.addCompletedStage(imageHash, visibility.getFormalVisibility(), IndexingStage.BINARY_SAVED);
+
+        // Broadcast image to pipeline
+        if (inlineBroadcaster != null && image.getBlob().length <= inlineMaxBytes) {
+            final byte[] message = ThriftUtils.serialize(image);
+            synchronized (inlineBroadcaster) {
+                inlineBroadcaster.broadcast(INLINE_TOPIC_NAME, visibility, message);
+            }
+        } else {
+            final byte[] message = ThriftUtils.serialize(ingestedImage);
+            synchronized (broadcaster) {
+                broadcaster.broadcast(TOPIC_NAME, visibility, message);
+            }
+        }
+
+        statusWriter.addCompletedStage(imageHash, visibility.getFormalVisibility(),
+                IndexingStage.TO_PROCESSING_WORKERS);
+
+        return ingestedImageInfo;
+    }
+
+    /**
+     * Stores an image, or records it as a reference when a copy with the same content and visibility is stored
+     * already, and sets the image ID of its info to the row holding the stored copy. A newly stored image is only
+     * queued for writing, without flushing it.
+     *
+     * @return true if the image was stored, false if it was recorded as a reference
+     */
+    boolean storeImage(Image image, IngestedImageInfo imageInfo, String userAuths) throws IOException, TException,
+            NoSuchAlgorithmException {
+        final Visibility visibility = imageInfo.getVisibility();
+        if (!deduplicate) {
+            imageInfo.setImageId(bytesToHex(writeImage(image, visibility)));
+            return true;
+        }
+
+        final byte[] contentHash = getContentHash(image.getBlob());
+        // Lookup and insert are serialized per content, so duplicates ingested concurrently are stored only once
+        synchronized (contentLocks[(Arrays.hashCode(contentHash) & Integer.MAX_VALUE) % contentLocks.length]) {
+            // Only a copy stored under the same visibility is reused, so a reference never grants more access
+            final byte[] canonicalRowId =
+                    contentIndex.getCanonicalRowId(contentHash, visibility.getFormalVisibility(), userAuths);
+            if (canonicalRowId != null) {
+                imageInfo.setImageId(bytesToHex(canonicalRowId));
+                contentIndex.addReference(canonicalRowId, imageInfo);
+
+                // The reference must be durable before the document is reported as ingested
+                accumuloThriftWriter.flush();
+                return false;
+            }
+
+            final byte[] imageHash = writeImage(image, visibility);
+            contentIndex.putCanonicalRowId(contentHash, imageHash, visibility.getFormalVisibility());
+            imageInfo.setImageId(bytesToHex(imageHash));
+
+            // The next lookup of this content reads the index from Accumulo
+            accumuloThriftWriter.flush();
+            return true;
+        }
+    }
+
+    /**
+     * Queues the image and its first indexing stage for writing without flushing them.
+     *
+     * @return Row ID of the image
+     */
+    private byte[] writeImage(Image image, Visibility visibility) throws IOException, TException,
+            NoSuchAlgorithmException {
+        final byte[] imageHash = getImageId(image);
+        statusWriter.addCompletedStage(imageHash, visibility.getFormalVisibility(), IndexingStage.EXTRACTED_FROM_DOC);
+
+        logger.info("Writing image into Accumulo with index {} and visibility {}", bytesToHex(imageHash),
+                visibility.getFormalVisibility());
+
+        accumuloThriftWriter.writeAsync(image, imageHash, visibility.getFormalVisibility());
+        return imageHash;
+    }
+
+    private static AccumuloThriftReaderWriter openWriter(Properties props) {
+        try {
+            return new AccumuloThriftReaderWriter(props, INGEST_PROFILE);
+        } catch (final Exception ex) {
+            final String errMsg = "Cannot open Accumulo writer";
+            logger.error(errMsg, ex);
+            throw new RuntimeException(errMsg, ex);
+        }
+    }
+
+    /**
+     * Cancels the tasks that have not started and waits for the running ones, ignoring their results.
+     */
+    private static void awaitTasks(List<? extends Future<?>> tasks) {
+        for (final Future<?> task : tasks) {
+            task.cancel(false);
+        }
+
+        for (final Future<?> task : tasks) {
+            try {
+                getUninterruptibly(task);
+            } catch (final CancellationException | ExecutionException e) {
+                // Already reported by the caller or never started
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        imageExecutor.shutdown();
+        try {
+            if (!imageExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Image ingest tasks did not finish before close");
+                imageExecutor.shutdownNow();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            imageExecutor.shutdownNow();
+        }
+
+        synchronized (broadcasters) {
+            for (final Table.Cell<String, String, EzBroadcaster> broadcaster : broadcasters.cellSet()) {
+                broadcaster.getValue().unregisterFromTopic(broadcaster.getRowKey());
+                broadcaster.getValue().close();
+            }
+
+            broadcasters.clear();
+        }
+
+        accumuloThriftWriter.close();
+    }
+
+    /**
+     * Returns the broadcaster for a topic, creating it on first use. The topic key is retrieved from the locksmith
+     * with the caller's token, so a broadcaster is only shared by the documents of callers from the same app.
+     * Broadcasters are closed by {@link #close()}.
+     */
+    private EzBroadcaster getBroadcaster(EzSecurityToken token, String topic) {
+        final String appId = getAppId(token);
+        synchronized (broadcasters) {
+            EzBroadcaster ezbroadcaster = broadcasters.get(topic, appId);
+            if (ezbroadcaster == null) {
+                ezbroadcaster = createBroadcaster(token, topic);
+                broadcasters.put(topic, appId, ezbroadcaster);
+            }
+
+            return ezbroadcaster;
+        }
+    }
+
+    /**
+     * @return Security ID of the app the token was issued to, or an empty string if the token does not name one
+     */
+    static String getAppId(EzSecurityToken token) {
+        if (!token.isSetValidity() || !token.getValidity().isSetIssuedTo()) {
+            return "";
+        }
+
+        return token.getValidity().getIssuedTo();
+    }
+
+    private EzBroadcaster createBroadcaster(EzSecurityToken token, String topic) {
         EzBroadcaster ezbroadcaster = null;
         if (new EzProperties(props, false).getBoolean(EzBroadcaster.PRODUCTION_MODE, false) || inOpenShiftContainer()) {
             EzLocksmith.Client locksmith = null;
             try {
                 locksmith = pool.getClient(EzLocksmithConstants.SERVICE_NAME, EzLocksmith.Client.class);
-                final String key = locksmith.retrievePublicKey(token, TOPIC_NAME, null);
-                ezbroadcaster = EzBroadcaster.create(props, groupId, key, TOPIC_NAME, false);
+                final String key = locksmith.retrievePublicKey(token, topic, null);
+                ezbroadcaster = EzBroadcaster.create(props, groupId, key, topic, false);
             } catch (final TException e) {
                 throw new RuntimeException("Could not initialize broadcaster without key from locksmith", e);
             } finally {
@@ -182,7 +459,7 @@ public class PipelineDocumentIngester implements DocumentIngester {
             ezbroadcaster = EzBroadcaster.create(props, groupId);
         }
 
-        ezbroadcaster.registerBroadcastTopic(TOPIC_NAME);
+        ezbroadcaster.registerBroadcastTopic(topic);
 
         return ezbroadcaster;
     }
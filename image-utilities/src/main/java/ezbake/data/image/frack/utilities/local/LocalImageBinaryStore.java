@@ -0,0 +1,686 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.local;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getContentHash;
+import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.core.security.VisibilityEvaluator;
+import org.apache.accumulo.core.security.VisibilityParseException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+
+import ezbake.data.image.frack.utilities.ImageBinaryStore;
+import ezbake.data.image.frack.utilities.ImageUtils;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.Visibility;
+import ezbake.common.properties.EzProperties;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.extractor.imagemetadata.thrift.InvalidImageException;
+import ezbake.services.indexing.image.thrift.IndexingStage;
+import ezbake.services.indexing.image.thrift.IndexingStatus;
+import ezbake.services.indexing.image.thrift.InsertFailed;
+import ezbake.services.indexing.image.thrift.Thumbnail;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+import ezbake.thrift.ThriftUtils;
+
+/**
+ * Image store on the local file system for edge deployments, benchmarks and tests, needing no external services.
+ * <p>
+ * Serialized originals and thumbnails are appended to segment files ({@link SegmentFiles}) and addressed by the hash
+ * of their bytes, so identical values are stored once. An in-memory index maps each image ID and column, named as in
+ * the Accumulo store, to the stored value and the visibility it was written with. The index is rebuilt at startup
+ * from an append-only index log in the same directory. Reads check the caller's authorizations against the stored
+ * visibility expression exactly as Accumulo does.
+ * <p>
+ * Deleted and overwritten values stay in their segment files until {@link #compact()} rewrites the live values into
+ * new segments.
+ */
+public class LocalImageBinaryStore implements ImageBinaryStore {
+    /**
+     * Directory holding the segment files and index log. Required.
+     */
+    public static final String DIRECTORY_KEY = "image.store.local.directory";
+
+    /**
+     * Size at which a segment file is closed and a new one started. Defaults to 256 MB.
+     */
+    public static final String SEGMENT_BYTES_KEY = "image.store.local.segmentBytes";
+
+    static final String IMAGE_COLUMN = "Image_Chunk";
+    static final String STAGE_COLUMN_PREFIX = "IndexingStatus/Stage_";
+
+    private static final Logger logger = getLogger(LocalImageBinaryStore.class);
+    private static final String INDEX_LOG = "index.log";
+    private static final String COMPACT_DIRECTORY = "compact";
+    private static final String OBSOLETE_DIRECTORY = "obsolete";
+    private static final String COMPLETE_MARKER = "COMPLETE";
+    private static final byte PUT_RECORD = 1;
+    private static final byte DELETE_RECORD = 2;
+
+    private static final class Entry {
+        private final String visibility;
+        private final String contentHash;
+        private final SegmentFiles.Location location;
+
+        private Entry(String visibility, String contentHash, SegmentFiles.Location location) {
+            this.visibility = visibility;
+            this.contentHash = contentHash;
+            this.location = location;
+        }
+    }
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final Map<String, Map<String, Entry>> index = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object compactionLock = new Object();
+
+    // Guarded by the lock: replaced when the store is compacted
+    private SegmentFiles segments;
+    private DataOutputStream indexLog;
+    private Map<String, SegmentFiles.Location> contentLocations = new HashMap<>();
+    private long storedBytes;
+
+    public LocalImageBinaryStore(Properties config) throws IOException {
+        this(new File(getDirectory(config)), new EzProperties(config, false).getLong(SEGMENT_BYTES_KEY,
+                256L * 1024 * 1024));
+    }
+
+    public LocalImageBinaryStore(File directory, long maxSegmentBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create image store directory " + directory);
+        }
+
+        this.directory = directory;
+
+        // Full segments are mapped whole, so they must fit in one mapping
+        this.maxSegmentBytes = Math.min(maxSegmentBytes, Integer.MAX_VALUE);
+
+        finishCompaction();
+        segments = new SegmentFiles(directory, this.maxSegmentBytes);
+
+        final File indexFile = new File(directory, INDEX_LOG);
+        if (indexFile.exists()) {
+            replayIndex(indexFile);
+        }
+
+        indexLog = openIndexLog(indexFile);
+    }
+
+    @Override
+    public boolean ping() {
+        return true;
+    }
+
+    @Override
+    public void addImage(Image image, String imageId, Visibility visibility, String... types) throws InsertFailed {
+        try {
+            final String normalizedId = normalize(imageId);
+            final String formalVisibility = visibility.getFormalVisibility();
+
+            String type = "jpg";
+            if (types.length > 0) {
+                type = types[0];
+            }
+
+            final Map<ThumbnailSize, Thumbnail> thumbnails = ImageUtils.createThumbnails(image, type);
+
+            lock.writeLock().lock();
+            try {
+                put(normalizedId, IMAGE_COLUMN, formalVisibility, ThriftUtils.serialize(image));
+                for (final Map.Entry<ThumbnailSize, Thumbnail> thumbnail : thumbnails.entrySet()) {
+                    put(normalizedId, thumbnail.getKey().name(), formalVisibility,
+                            ThriftUtils.serialize(thumbnail.getValue()));
+                }
+
+                put(normalizedId, STAGE_COLUMN_PREFIX + IndexingStage.BINARY_SAVED.name(), formalVisibility,
+                        new byte[0]);
+                put(normalizedId, STAGE_COLUMN_PREFIX + IndexingStage.THUMBNAILS_GENERATED.name(), formalVisibility,
+                        new byte[0]);
+                sync();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (final IOException ex) {
+            final String errMsg = "Could not write image " + imageId + " to local store";
+            logger.error(errMsg, ex);
+            throw new InsertFailed(imageId, errMsg);
+        } catch (final InvalidImageException ex) {
+            final String errMsg = "Could not write image " + imageId + " to local store";
+            logger.error(errMsg, ex);
+            throw new InsertFailed(imageId, errMsg);
+        } catch (final NoSuchAlgorithmException ex) {
+            final String errMsg = "Could not write image " + imageId + " to local store";
+            logger.error(errMsg, ex);
+            throw new InsertFailed(imageId, errMsg);
+        } catch (final TException ex) {
+            final String errMsg = "Could not write image " + imageId + " to local store";
+            logger.error(errMsg, ex);
+            throw new InsertFailed(imageId, errMsg);
+        }
+    }
+
+    /**
+     * Records a completed indexing stage for an image, as the ingest pipeline does for the Accumulo store.
+     */
+    public void addCompletedStage(String imageId, Visibility visibility, IndexingStage stage) throws IOException {
+        write(imageId, STAGE_COLUMN_PREFIX + stage.name(), visibility, new byte[0]);
+    }
+
+    /**
+     * Stores an original image without creating its thumbnails or recording any indexing stage, for callers that
+     * copy images from another store.
+     */
+    public void putImage(String imageId, Visibility visibility, Image image) throws IOException, TException {
+        write(imageId, IMAGE_COLUMN, visibility, ThriftUtils.serialize(image));
+    }
+
+    /**
+     * Stores a single thumbnail, for callers that copy thumbnails from another store.
+     */
+    public void putThumbnail(String imageId, Visibility visibility, ThumbnailSize size, Thumbnail thumbnail)
+            throws IOException, TException {
+        write(imageId, size.name(), visibility, ThriftUtils.serialize(thumbnail));
+    }
+
+    @Override
+    public Image getImage(String imageId, Authorizations auths) {
+        return read(Image.class, imageId, IMAGE_COLUMN, auths);
+    }
+
+    @Override
+    public Map<String, Image> getImages(Collection<String> imageIds, Authorizations auths) {
+        final Map<String, Image> images = new HashMap<>();
+        for (final String imageId : imageIds) {
+            final Image image = getImage(imageId, auths);
+            if (image != null) {
+                images.put(imageId, image);
+            }
+        }
+
+        return images;
+    }
+
+    @Override
+    public void deleteImage(String imageId, Authorizations auths) {
+        final String normalizedId = normalize(imageId);
+        lock.writeLock().lock();
+        try {
+            if (index.remove(normalizedId) != null) {
+                indexLog.writeByte(DELETE_RECORD);
+                indexLog.writeUTF(normalizedId);
+                sync();
+            }
+        } catch (final IOException ex) {
+            logger.error("Could not delete image " + imageId, ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Thumbnail getThumbnail(String imageId, Authorizations auths, ThumbnailSize size) {
+        return read(Thumbnail.class, imageId, size.name(), auths);
+    }
+
+    @Override
+    public Map<String, Thumbnail> getThumbnails(Collection<String> imageIds, Authorizations auths,
+            ThumbnailSize size) {
+        final Map<String, Thumbnail> thumbnails = new HashMap<>();
+        for (final String imageId : imageIds) {
+            final Thumbnail thumbnail = getThumbnail(imageId, auths, size);
+            if (thumbnail != null) {
+                thumbnails.put(imageId, thumbnail);
+            }
+        }
+
+        return thumbnails;
+    }
+
+    @Override
+    public IndexingStatus getIndexingStatus(String imageId, Authorizations auths) {
+        final List<IndexingStage> stages = new ArrayList<>();
+        final Map<String, Entry> columns = index.get(normalize(imageId));
+        if (columns != null) {
+            for (final IndexingStage stage : IndexingStage.values()) {
+                final Entry entry = columns.get(STAGE_COLUMN_PREFIX + stage.name());
+                if (entry != null && canRead(entry.visibility, auths)) {
+                    stages.add(stage);
+                }
+            }
+        }
+
+        return new IndexingStatus(stages, stages.size() == IndexingStage.values().length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            indexLog.close();
+        } finally {
+            segments.close();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return IDs of the images with at least one stored value, in normalized hex form
+     */
+    public Set<String> getImageIds() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * @return Total bytes of the values stored for an image, counting shared values once per image
+     */
+    public long getImageBytes(String imageId) {
+        final Map<String, Entry> columns = index.get(normalize(imageId));
+        long bytes = 0;
+        if (columns != null) {
+            for (final Entry entry : columns.values()) {
+                bytes += entry.location.length;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return Bytes held by the segment files, including values that were deleted or overwritten since the last
+     *         compaction
+     */
+    public long getStoredBytes() {
+        lock.readLock().lock();
+        try {
+            return storedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the live values into new segment files and a new index log, reclaiming the space of deleted and
+     * overwritten values.
+     * <p>
+     * The values live when the compaction starts are copied while reads and writes go on. Only the values written
+     * since then, the new index log and the swap of the files are done while holding the write lock, so reads and
+     * writes wait just for those. Compactions run one at a time.
+     * <p>
+     * The new files are written to a separate directory and only swapped in once complete, so a crash at any point
+     * leaves either the old or the new files in place; an interrupted swap is finished when the store is next
+     * opened.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            final File compactDirectory = new File(directory, COMPACT_DIRECTORY);
+            FileUtils.deleteDirectory(compactDirectory);
+            if (!compactDirectory.mkdirs()) {
+                throw new IOException("Could not create compaction directory " + compactDirectory);
+            }
+
+            final Map<String, SegmentFiles.Location> liveLocations = new HashMap<>();
+            try (SegmentFiles compacted = new SegmentFiles(compactDirectory, maxSegmentBytes)) {
+                long copiedBytes = copyLiveValues(compacted, liveLocations, snapshotLiveLocations());
+
+                lock.writeLock().lock();
+                try {
+                    // Copies values written during the first pass and logs the index as it is now
+                    try (DataOutputStream compactedLog = openIndexLog(new File(compactDirectory, INDEX_LOG))) {
+                        for (final Map.Entry<String, Map<String, Entry>> image : index.entrySet()) {
+                            for (final Map.Entry<String, Entry> column : image.getValue().entrySet()) {
+                                final Entry entry = column.getValue();
+                                SegmentFiles.Location location = liveLocations.get(entry.contentHash);
+                                if (location == null) {
+                                    location = compacted.append(toBytes(segments.read(entry.location)));
+                                    liveLocations.put(entry.contentHash, location);
+                                    copiedBytes += location.length;
+                                }
+
+                                writePut(compactedLog, image.getKey(), column.getKey(), entry.visibility,
+                                        entry.contentHash, location);
+                            }
+                        }
+                    }
+
+                    compacted.sync();
+                    compacted.close();
+                    swapCompacted(compactDirectory, liveLocations, copiedBytes);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Locations of the values referenced by the index, by content hash
+     */
+    private Map<String, SegmentFiles.Location> snapshotLiveLocations() {
+        final Map<String, SegmentFiles.Location> locations = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (final Map<String, Entry> columns : index.values()) {
+                for (final Entry entry : columns.values()) {
+                    locations.put(entry.contentHash, entry.location);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return locations;
+    }
+
+    /**
+     * Copies values into the compacted segments, holding the read lock only while each value is read so writers are
+     * not kept waiting for the whole copy.
+     *
+     * @return Bytes copied
+     */
+    private long copyLiveValues(SegmentFiles compacted, Map<String, SegmentFiles.Location> liveLocations,
+            Map<String, SegmentFiles.Location> locations) throws IOException {
+        long copiedBytes = 0;
+        for (final Map.Entry<String, SegmentFiles.Location> value : locations.entrySet()) {
+            final byte[] bytes;
+            lock.readLock().lock();
+            try {
+                bytes = toBytes(segments.read(value.getValue()));
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            final SegmentFiles.Location location = compacted.append(bytes);
+            liveLocations.put(value.getKey(), location);
+            copiedBytes += location.length;
+        }
+
+        return copiedBytes;
+    }
+
+    /**
+     * Replaces the store's files with the completely written compacted files. Callers must hold the write lock.
+     */
+    private void swapCompacted(File compactDirectory, Map<String, SegmentFiles.Location> liveLocations,
+            long compactedBytes) throws IOException {
+        createMarker(compactDirectory);
+        logger.info("Compacted local image store {} from {} to {} bytes", directory, storedBytes, compactedBytes);
+
+        indexLog.close();
+        segments.close();
+        finishCompaction();
+
+        segments = new SegmentFiles(directory, maxSegmentBytes);
+        indexLog = openIndexLog(new File(directory, INDEX_LOG));
+        contentLocations = liveLocations;
+        storedBytes = compactedBytes;
+        for (final Map<String, Entry> columns : index.values()) {
+            for (final Map.Entry<String, Entry> column : columns.entrySet()) {
+                final Entry entry = column.getValue();
+                column.setValue(new Entry(entry.visibility, entry.contentHash, liveLocations.get(entry.contentHash)));
+            }
+        }
+    }
+
+    /**
+     * Whether a visibility expression is satisfied by the authorizations, evaluated as Accumulo evaluates cell
+     * visibilities.
+     */
+    static boolean canRead(String visibility, Authorizations auths) {
+        if (visibility == null || visibility.isEmpty()) {
+            return true;
+        }
+
+        if (auths == null || auths.getFormalAuthorizations() == null) {
+            return false;
+        }
+
+        final org.apache.accumulo.core.security.Authorizations accumuloAuths =
+                new org.apache.accumulo.core.security.Authorizations(auths.getFormalAuthorizations().toArray(
+                        new String[auths.getFormalAuthorizations().size()]));
+        try {
+            return new VisibilityEvaluator(accumuloAuths).evaluate(new ColumnVisibility(visibility));
+        } catch (final VisibilityParseException ex) {
+            logger.warn("Invalid visibility expression " + visibility, ex);
+            return false;
+        }
+    }
+
+    private <T extends TBase<?, ?>> T read(Class<T> clazz, String imageId, String column, Authorizations auths) {
+        lock.readLock().lock();
+        try {
+            final Map<String, Entry> columns = index.get(normalize(imageId));
+            final Entry entry = columns == null ? null : columns.get(column);
+            if (entry == null || !canRead(entry.visibility, auths)) {
+                return null;
+            }
+
+            return ThriftUtils.deserialize(clazz, toBytes(segments.read(entry.location)));
+        } catch (final IOException ex) {
+            logger.error("Could not read " + column + " for image " + imageId + " from local store", ex);
+        } catch (final TException ex) {
+            logger.error("Could not read " + column + " for image " + imageId + " from local store", ex);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return null;
+    }
+
+    private void write(String imageId, String column, Visibility visibility, byte[] value) throws IOException {
+        lock.writeLock().lock();
+        try {
+            put(normalize(imageId), column, visibility.getFormalVisibility(), value);
+            sync();
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IOException("Could not hash value for image " + imageId, ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a value, reusing the stored copy of identical bytes, and logs it in the index. Callers must hold the
+     * write lock.
+     */
+    private void put(String imageId, String column, String visibility, byte[] value) throws IOException,
+            NoSuchAlgorithmException {
+        final String contentHash = bytesToHex(getContentHash(value));
+        SegmentFiles.Location location = contentLocations.get(contentHash);
+        if (location == null) {
+            location = segments.append(value);
+            contentLocations.put(contentHash, location);
+            storedBytes += location.length;
+        }
+
+        writePut(indexLog, imageId, column, visibility, contentHash, location);
+        addToIndex(imageId, column, new Entry(visibility, contentHash, location));
+    }
+
+    private static void writePut(DataOutputStream log, String imageId, String column, String visibility,
+            String contentHash, SegmentFiles.Location location) throws IOException {
+        log.writeByte(PUT_RECORD);
+        log.writeUTF(imageId);
+        log.writeUTF(column);
+        log.writeUTF(visibility == null ? "" : visibility);
+        log.writeUTF(contentHash);
+        log.writeInt(location.segment);
+        log.writeLong(location.offset);
+        log.writeInt(location.length);
+    }
+
+    private void addToIndex(String imageId, String column, Entry entry) {
+        Map<String, Entry> columns = index.get(imageId);
+        if (columns == null) {
+            columns = new ConcurrentHashMap<>();
+            index.put(imageId, columns);
+        }
+
+        columns.put(column, entry);
+    }
+
+    private void sync() throws IOException {
+        segments.sync();
+        indexLog.flush();
+    }
+
+    /**
+     * Loads the index from its log. A record cut short by a crash is dropped by truncating the log to the last
+     * complete record, so records appended later are not read as part of it.
+     */
+    private void replayIndex(File indexFile) throws IOException {
+        final CountingInputStream counter =
+                new CountingInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        long completeBytes = 0;
+        try (DataInputStream in = new DataInputStream(counter)) {
+            while (true) {
+                final byte type;
+                try {
+                    type = in.readByte();
+                } catch (final EOFException ex) {
+                    break;
+                }
+
+                if (type == DELETE_RECORD) {
+                    index.remove(in.readUTF());
+                    completeBytes = counter.getByteCount();
+                    continue;
+                }
+
+                final String imageId = in.readUTF();
+                final String column = in.readUTF();
+                final String visibility = in.readUTF();
+                final String contentHash = in.readUTF();
+                final SegmentFiles.Location location =
+                        new SegmentFiles.Location(in.readInt(), in.readLong(), in.readInt());
+
+                if (contentLocations.put(contentHash, location) == null) {
+                    storedBytes += location.length;
+                }
+
+                addToIndex(imageId, column, new Entry(visibility, contentHash, location));
+                completeBytes = counter.getByteCount();
+            }
+        } catch (final EOFException ex) {
+            logger.warn("Index log {} ends with an incomplete record, truncating it to {} bytes", indexFile,
+                    completeBytes);
+            try (RandomAccessFile log = new RandomAccessFile(indexFile, "rw")) {
+                log.setLength(completeBytes);
+            }
+        }
+    }
+
+    /**
+     * Completes a compaction that was interrupted after its files were fully written, or discards one that was not.
+     * The old files are first moved aside and only then are the new files moved in, each step marked complete once
+     * done, so every step can safely be repeated.
+     */
+    private void finishCompaction() throws IOException {
+        final File compactDirectory = new File(directory, COMPACT_DIRECTORY);
+        final File obsoleteDirectory = new File(directory, OBSOLETE_DIRECTORY);
+        if (compactDirectory.isDirectory() && !new File(compactDirectory, COMPLETE_MARKER).exists()) {
+            FileUtils.deleteDirectory(compactDirectory);
+        }
+
+        if (compactDirectory.isDirectory()) {
+            if (!new File(obsoleteDirectory, COMPLETE_MARKER).exists()) {
+                FileUtils.forceMkdir(obsoleteDirectory);
+                moveDataFiles(directory, obsoleteDirectory);
+                createMarker(obsoleteDirectory);
+            }
+
+            moveDataFiles(compactDirectory, directory);
+            FileUtils.deleteDirectory(compactDirectory);
+        }
+
+        FileUtils.deleteDirectory(obsoleteDirectory);
+    }
+
+    private static void moveDataFiles(File from, File to) throws IOException {
+        final File[] files = from.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list files in " + from);
+        }
+
+        for (final File file : files) {
+            if (file.isFile() && !file.getName().equals(COMPLETE_MARKER)) {
+                FileUtils.moveFile(file, new File(to, file.getName()));
+            }
+        }
+    }
+
+    private static void createMarker(File directory) throws IOException {
+        final File marker = new File(directory, COMPLETE_MARKER);
+        if (!marker.exists() && !marker.createNewFile()) {
+            throw new IOException("Could not create " + marker);
+        }
+    }
+
+    private static DataOutputStream openIndexLog(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private static byte[] toBytes(ByteBuffer value) {
+        final byte[] bytes = new byte[value.remaining()];
+        value.get(bytes);
+        return bytes;
+    }
+
+    private static String normalize(String imageId) {
+        return bytesToHex(hexToBytes(imageId));
+    }
+
+    private static String getDirectory(Properties config) throws IOException {
+        final String directory = config.getProperty(DIRECTORY_KEY);
+        if (directory == null || directory.trim().isEmpty()) {
+            throw new IOException("No local image store directory configured in " + DIRECTORY_KEY);
+        }
+
+        return directory.trim();
+    }
+}
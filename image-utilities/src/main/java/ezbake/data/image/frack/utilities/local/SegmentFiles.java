@@ -0,0 +1,171 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.local;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only data files of a {@link LocalImageBinaryStore}. Values are appended to the active segment file until it
+ * reaches its size limit, after which a new segment is started and the full one is never written again. Full
+ * segments are mapped once and kept mapped, and reads from them are served from the mapping. The active segment is
+ * still growing, so it is read with positional reads instead of being mapped again for every read.
+ */
+final class SegmentFiles implements Closeable {
+    /**
+     * Where a value is stored.
+     */
+    static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final String SEGMENT_FORMAT = "segment-%05d.dat";
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final Map<Integer, FileChannel> channels = new ConcurrentHashMap<>();
+    private final Map<Integer, MappedByteBuffer> sealed = new ConcurrentHashMap<>();
+
+    private int active;
+    private long activeSize;
+
+    SegmentFiles(File directory, long maxSegmentBytes) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+
+        final String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("segment-") && name.endsWith(".dat");
+            }
+        });
+
+        Arrays.sort(names);
+        for (int i = 0; i < names.length; i++) {
+            final int segment = Integer.parseInt(names[i].substring("segment-".length(), names[i].length() - 4));
+            if (i < names.length - 1) {
+                seal(segment);
+            } else {
+                active = segment;
+            }
+        }
+
+        activeSize = getChannel(active).size();
+    }
+
+    /**
+     * Appends a value to the active segment, starting a new segment first if the value does not fit.
+     */
+    synchronized Location append(byte[] value) throws IOException {
+        if (activeSize > 0 && activeSize + value.length > maxSegmentBytes) {
+            seal(active);
+            active++;
+            activeSize = 0;
+        }
+
+        final FileChannel channel = getChannel(active);
+        final ByteBuffer buffer = ByteBuffer.wrap(value);
+        long position = activeSize;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        final Location location = new Location(active, activeSize, value.length);
+        activeSize = position;
+        return location;
+    }
+
+    /**
+     * @return A read-only buffer holding the value
+     */
+    ByteBuffer read(Location location) throws IOException {
+        final MappedByteBuffer segment = sealed.get(location.segment);
+        if (segment == null) {
+            final FileChannel channel = getChannel(location.segment);
+            final ByteBuffer value = ByteBuffer.allocate(location.length);
+            while (value.hasRemaining()) {
+                if (channel.read(value, location.offset + value.position()) < 0) {
+                    throw new EOFException("Segment " + location.segment + " ends before the value at "
+                            + location.offset);
+                }
+            }
+
+            value.flip();
+            return value.asReadOnlyBuffer();
+        }
+
+        final ByteBuffer value = segment.duplicate();
+        value.position((int) location.offset);
+        value.limit((int) location.offset + location.length);
+        return value.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Forces written values to disk.
+     */
+    void sync() throws IOException {
+        getChannel(active).force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final FileChannel channel : channels.values()) {
+            channel.close();
+        }
+
+        channels.clear();
+        sealed.clear();
+    }
+
+    private void seal(int segment) throws IOException {
+        final FileChannel channel = getChannel(segment);
+        sealed.put(segment, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    @SuppressWarnings("resource")
+    private FileChannel getChannel(int segment) throws IOException {
+        FileChannel channel = channels.get(segment);
+        if (channel == null) {
+            synchronized (channels) {
+                channel = channels.get(segment);
+                if (channel == null) {
+                    final File file = new File(directory, String.format(SEGMENT_FORMAT, segment));
+                    channel = new RandomAccessFile(file, "rw").getChannel();
+                    channels.put(segment, channel);
+                }
+            }
+        }
+
+        return channel;
+    }
+}
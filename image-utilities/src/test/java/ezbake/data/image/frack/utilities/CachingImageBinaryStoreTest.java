@@ -0,0 +1,118 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getHash;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.commons.io.IOUtils;
+import org.elasticsearch.common.collect.Sets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ezbake.data.image.frack.utilities.accumulo.AccumuloImageStore;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.Visibility;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.Thumbnail;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+public class CachingImageBinaryStoreTest {
+    private CachingImageBinaryStore imageStore;
+
+    @Before
+    public void setUp() throws Exception {
+        final MockInstance instance = new MockInstance("mock");
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        imageStore = new CachingImageBinaryStore(new AccumuloImageStore(instance, config), config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        imageStore.close();
+    }
+
+    @Test
+    public void testReadThrough() throws Exception {
+        final Authorizations unclassAuths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U"));
+        final String imageId = addImage("test.png");
+
+        final Thumbnail first = imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL);
+        assertNotNull(first);
+        assertSame(first, imageStore.getThumbnail(imageId.toLowerCase(), unclassAuths, ThumbnailSize.SMALL));
+        assertSame(first, imageStore.getThumbnails(Arrays.asList(imageId), unclassAuths, ThumbnailSize.SMALL)
+                .get(imageId));
+        assertEquals(1, imageStore.getThumbnailCacheStats().missCount());
+        assertEquals(2, imageStore.getThumbnailCacheStats().hitCount());
+
+        // Other authorizations never share an entry
+        final Authorizations otherAuths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U", "FOUO"));
+        imageStore.getThumbnail(imageId, otherAuths, ThumbnailSize.SMALL);
+        assertEquals(2, imageStore.getThumbnailCacheStats().missCount());
+
+        imageStore.deleteImage(imageId, unclassAuths);
+        assertNull(imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL));
+    }
+
+    @Test
+    public void testEvictionByBytes() throws Exception {
+        final Authorizations unclassAuths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U"));
+        final String imageId = addImage("test.jpg");
+        final int thumbnailBytes =
+                imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.LARGE).getThumbnailBytes().length;
+        imageStore.close();
+
+        final MockInstance instance = new MockInstance("mock");
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        imageStore = new CachingImageBinaryStore(new AccumuloImageStore(instance, config), thumbnailBytes);
+
+        imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.LARGE);
+        imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.MEDIUM);
+        assertTrue(imageStore.getThumbnailCacheStats().evictionCount() > 0);
+    }
+
+    private String addImage(String fileName) throws Exception {
+        byte[] bytes = null;
+        try (InputStream fileIn = CachingImageBinaryStoreTest.class.getResourceAsStream("/" + fileName)) {
+            bytes = IOUtils.toByteArray(fileIn);
+        }
+
+        final Image image = new Image();
+        image.setFileName(fileName);
+        image.setOriginalDocumentUri("file://" + fileName);
+        image.setBlob(bytes);
+
+        final String imageId = bytesToHex(getHash(bytes, fileName));
+        imageStore.addImage(image, imageId, new Visibility().setFormalVisibility("U"));
+        return imageId;
+    }
+}
@@ -0,0 +1,147 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.image.frack.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import ezbake.services.extractor.imagemetadata.thrift.Dimensions;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.Thumbnail;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+public class ImageUtilsTest {
+    @Test
+    public void testCreateThumbnails() throws Exception {
+        final Image image = loadImage("test.jpg");
+        final Map<ThumbnailSize, Thumbnail> thumbnails = ImageUtils.createThumbnails(image, "jpg");
+        assertEquals(ThumbnailSize.values().length, thumbnails.size());
+
+        assertLongestSide(600, thumbnails.get(ThumbnailSize.LARGE));
+        assertLongestSide(300, thumbnails.get(ThumbnailSize.MEDIUM));
+        assertLongestSide(100, thumbnails.get(ThumbnailSize.SMALL));
+
+        // Each size is scaled from the next larger one but keeps the aspect ratio of the original
+        final Dimensions original = ImageUtils.getDimensions(image);
+        for (final Thumbnail thumbnail : thumbnails.values()) {
+            assertEquals("image/jpeg", thumbnail.getMimeType());
+            assertEquals(original.getAspectRatio(), thumbnail.getDimensions().getAspectRatio(), 0.02);
+        }
+
+        // The cascade gives the same sizes as creating each thumbnail on its own
+        for (final ThumbnailSize size : ThumbnailSize.values()) {
+            final Dimensions single = ImageUtils.createThumbnail(image, size, "jpg").getDimensions();
+            assertEquals(single.getWidth(), thumbnails.get(size).getDimensions().getWidth());
+            assertEquals(single.getHeight(), thumbnails.get(size).getDimensions().getHeight());
+        }
+    }
+
+    @Test
+    public void testCreateThumbnailsOfSmallImage() throws Exception {
+        // Images smaller than a thumbnail size are never scaled up
+        final Map<ThumbnailSize, Thumbnail> thumbnails = ImageUtils.createThumbnails(loadImage("test.bmp"), "png");
+
+        assertLongestSide(124, thumbnails.get(ThumbnailSize.LARGE));
+        assertLongestSide(124, thumbnails.get(ThumbnailSize.MEDIUM));
+        assertLongestSide(100, thumbnails.get(ThumbnailSize.SMALL));
+        assertEquals("image/png", thumbnails.get(ThumbnailSize.SMALL).getMimeType());
+    }
+
+    @Test
+    public void testSubsampledDecode() throws Exception {
+        final Image image = loadImage("test.jpg");
+        final BufferedImage full = ImageUtils.getBufferedImage(image);
+
+        // 1772 pixels wide, so a minimum of 400 allows subsampling by 4
+        final BufferedImage reduced = ImageUtils.getBufferedImage(image, 400);
+        assertEquals((full.getWidth() + 3) / 4, reduced.getWidth());
+        assertEquals((full.getHeight() + 3) / 4, reduced.getHeight());
+
+        // Never decoded smaller than asked for, nor subsampled when the image is already small enough
+        assertTrue(ImageUtils.getBufferedImage(image, 1000).getWidth() >= 1000);
+        assertEquals(full.getWidth(), ImageUtils.getBufferedImage(image, 5000).getWidth());
+    }
+
+    @Test
+    public void testTiffPageSelection() throws Exception {
+        // Pages of 800x400, 200x100 and 50x25, the smaller two marked as reduced-resolution
+        final Image image = loadImage("test_pyramid.tif");
+
+        assertDecodedWidth(50, image, 40);
+        assertDecodedWidth(200, image, 150);
+
+        // The smallest large enough page is subsampled further when it is still twice the size needed
+        assertDecodedWidth(100, image, 100);
+        assertDecodedWidth(400, image, 300);
+    }
+
+    @Test
+    public void testTiffPagesNotReduced() throws Exception {
+        // Separate pages of 800x400, 800x400 and 200x100, none marked as reduced-resolution
+        final Image image = loadImage("test_multipage.tif");
+
+        // The first page is always subsampled, even when a later page would cover the dimension
+        assertDecodedWidth(160, image, 150);
+        assertDecodedWidth(800, image, 800);
+    }
+
+    @Test
+    public void testDimensionsFromHeader() throws Exception {
+        final Image image = loadImage("test.png");
+        final Dimensions expected = ImageUtils.getDimensions(ImageUtils.getBufferedImage(image));
+
+        // Only the header is left, so any attempt to decode the pixels would fail
+        final Image headerOnly = new Image();
+        headerOnly.setFileName("header.png");
+        headerOnly.setBlob(Arrays.copyOf(image.getBlob(), 64));
+
+        assertEquals(expected, ImageUtils.getDimensions(headerOnly));
+        assertEquals(expected, ImageUtils.getDimensions(image));
+    }
+
+    private static void assertDecodedWidth(int expected, Image image, int minDimension) throws Exception {
+        final BufferedImage decoded = ImageUtils.getBufferedImage(image, minDimension);
+        assertEquals(expected, decoded.getWidth());
+        assertEquals(expected / 2, decoded.getHeight());
+    }
+
+    private static void assertLongestSide(int expected, Thumbnail thumbnail) {
+        assertNotNull(thumbnail);
+        final Dimensions dimensions = thumbnail.getDimensions();
+        assertEquals(expected, Math.max(dimensions.getWidth(), dimensions.getHeight()));
+    }
+
+    private static Image loadImage(String fileName) throws Exception {
+        byte[] bytes = null;
+        try (InputStream fileIn = ImageUtilsTest.class.getResourceAsStream("/" + fileName)) {
+            bytes = IOUtils.toByteArray(fileIn);
+        }
+
+        final Image image = new Image();
+        image.setFileName(fileName);
+        image.setBlob(bytes);
+        return image;
+    }
+}
@@ -0,0 +1,184 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.image.frack.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getHash;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.commons.io.IOUtils;
+import org.elasticsearch.common.collect.Sets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ezbake.data.image.frack.utilities.accumulo.AccumuloImageStore;
+import ezbake.data.image.frack.utilities.local.LocalImageBinaryStore;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.Visibility;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+public class TieredImageBinaryStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Authorizations unclassAuths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U"));
+    private final Authorizations noAuths = new Authorizations().setFormalAuthorizations(new HashSet<String>());
+
+    private LocalImageBinaryStore localStore;
+    private TieredImageBinaryStore imageStore;
+
+    @Before
+    public void setUp() throws Exception {
+        createStore(1024L * 1024 * 1024, 60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        imageStore.close();
+    }
+
+    @Test
+    public void testWriteThroughAndPromote() throws Exception {
+        final String imageId = addImage("test.jpg");
+        assertNotNull(localStore.getImage(imageId, unclassAuths));
+        assertNull(localStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL));
+
+        assertNotNull(imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL));
+        assertNotNull(localStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL));
+        assertEquals(1, imageStore.getThumbnails(Arrays.asList(imageId), unclassAuths, ThumbnailSize.SMALL).size());
+
+        // The local copy keeps the visibility it has in Accumulo
+        assertNull(localStore.getThumbnail(imageId, noAuths, ThumbnailSize.SMALL));
+        assertNull(imageStore.getThumbnail(imageId, noAuths, ThumbnailSize.SMALL));
+        assertNull(imageStore.getImage(imageId, noAuths));
+
+        imageStore.deleteImage(imageId, unclassAuths);
+        assertNull(imageStore.getImage(imageId, unclassAuths));
+        assertNull(localStore.getImage(imageId, unclassAuths));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        final String first = addImage("test.jpg");
+        final String second = addImage("test.png");
+        final long maxImageBytes = Math.max(localStore.getImageBytes(first), localStore.getImageBytes(second));
+        imageStore.close();
+        createStore(maxImageBytes, 60000);
+
+        assertNotNull(imageStore.getImage(first, unclassAuths));
+        assertNotNull(localStore.getImage(first, unclassAuths));
+
+        assertNotNull(imageStore.getImage(second, unclassAuths));
+        assertNotNull(localStore.getImage(second, unclassAuths));
+        assertNull(localStore.getImage(first, unclassAuths));
+
+        // Evicted images are still served from Accumulo and copied to the local tier again
+        assertNotNull(imageStore.getImage(first, unclassAuths));
+        assertNotNull(localStore.getImage(first, unclassAuths));
+        assertNull(localStore.getImage(second, unclassAuths));
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        imageStore.close();
+        createStore(1024L * 1024 * 1024, 0);
+
+        final String imageId = addImage("test.jpg");
+        assertNotNull(imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL));
+        assertNotNull(imageStore.getImage(imageId, unclassAuths));
+
+        // Deleted through another node's store, so this node's local tier is not told
+        final AccumuloImageStore otherNode = new AccumuloImageStore(new MockInstance("mock"), createConfig());
+        try {
+            otherNode.deleteImage(imageId, unclassAuths);
+        } finally {
+            otherNode.close();
+        }
+
+        assertNotNull(localStore.getImage(imageId, unclassAuths));
+        assertNull(imageStore.getImage(imageId, unclassAuths));
+        assertNull(imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL));
+        assertNull(localStore.getImage(imageId, unclassAuths));
+        assertNull(localStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL));
+    }
+
+    @Test
+    public void testBatchRevalidation() throws Exception {
+        imageStore.close();
+        createStore(1024L * 1024 * 1024, 0);
+
+        final String kept = addImage("test.jpg");
+        final String deleted = addImage("test.png");
+        final AccumuloImageStore otherNode = new AccumuloImageStore(new MockInstance("mock"), createConfig());
+        try {
+            otherNode.deleteImage(deleted, unclassAuths);
+        } finally {
+            otherNode.close();
+        }
+
+        // Both local copies are checked against Accumulo together, and only the deleted one is dropped
+        final Map<String, Image> images = imageStore.getImages(Arrays.asList(kept, deleted), unclassAuths);
+        assertEquals(1, images.size());
+        assertNotNull(images.get(kept));
+        assertNotNull(localStore.getImage(kept, unclassAuths));
+        assertNull(localStore.getImage(deleted, unclassAuths));
+    }
+
+    private void createStore(long maxLocalBytes, long revalidateMs) throws Exception {
+        final MockInstance instance = new MockInstance("mock");
+        localStore = new LocalImageBinaryStore(folder.newFolder(), 1024 * 1024);
+        imageStore = new TieredImageBinaryStore(new AccumuloImageStore(instance, createConfig()), localStore,
+                maxLocalBytes, revalidateMs);
+    }
+
+    private static Properties createConfig() {
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        return config;
+    }
+
+    private String addImage(String fileName) throws Exception {
+        byte[] bytes = null;
+        try (InputStream fileIn = TieredImageBinaryStoreTest.class.getResourceAsStream("/" + fileName)) {
+            bytes = IOUtils.toByteArray(fileIn);
+        }
+
+        final Image image = new Image();
+        image.setFileName(fileName);
+        image.setOriginalDocumentUri("file://" + fileName);
+        image.setBlob(bytes);
+
+        final String imageId = bytesToHex(getHash(bytes, fileName));
+        imageStore.addImage(image, imageId, new Visibility().setFormalVisibility("U"));
+        return imageId;
+    }
+}
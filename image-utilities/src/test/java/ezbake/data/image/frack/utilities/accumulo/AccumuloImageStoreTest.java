@@ -15,12 +15,19 @@
 package ezbake.data.image.frack.utilities.accumulo;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
 import static ezbake.data.image.frack.utilities.IndexingUtils.getHash;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.accumulo.core.client.mock.MockInstance;
@@ -30,6 +37,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import ezbake.data.image.frack.utilities.cache.OffHeapByteCache;
+
 import ezbake.base.thrift.Authorizations;
 import ezbake.base.thrift.Visibility;
 import ezbake.services.extractor.imagemetadata.thrift.Image;
@@ -75,24 +84,79 @@ public class AccumuloImageStoreTest {
         testImage("test.tif");
     }
 
+    @Test
+    public void testBatchRead() throws Exception {
+        final Visibility unclassVis = new Visibility().setFormalVisibility("U");
+        final Authorizations unclassAuths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U"));
+
+        final List<String> imageIds = new ArrayList<>();
+        for (final String fileName : new String[] {"test.jpg", "test.png", "test.gif"}) {
+            final Image image = loadImage(fileName);
+            final String imageId = bytesToHex(getHash(image.getBlob(), fileName));
+            imageStore.addImage(image, imageId, unclassVis);
+            imageIds.add(imageId);
+        }
+
+        final String missingId = bytesToHex(getHash(new byte[0], "missing"));
+        imageIds.add(missingId);
+
+        final Map<String, Image> images = imageStore.getImages(imageIds, unclassAuths);
+        assertEquals(3, images.size());
+        assertFalse(images.containsKey(missingId));
+
+        final Map<String, Thumbnail> thumbnails = imageStore.getThumbnails(imageIds, unclassAuths, ThumbnailSize.SMALL);
+        assertEquals(3, thumbnails.size());
+        for (final String imageId : images.keySet()) {
+            assertArrayEquals(imageStore.getImage(imageId, unclassAuths).getBlob(), images.get(imageId).getBlob());
+            assertNotNull(thumbnails.get(imageId));
+        }
+    }
+
+    @Test
+    public void testOffHeapCacheOfOriginals() throws Exception {
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        config.setProperty(AccumuloImageStore.OFF_HEAP_CACHE_BYTES_KEY, String.valueOf(4 * 1024 * 1024));
+        config.setProperty(AccumuloImageStore.OFF_HEAP_CACHE_SEGMENTS_KEY, "2");
+        config.setProperty(AccumuloImageStore.OFF_HEAP_CACHE_ORIGINALS_KEY, "true");
+
+        final Visibility unclassVis = new Visibility().setFormalVisibility("U");
+        final Authorizations unclassAuths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U"));
+        try (AccumuloImageStore cachingStore = new AccumuloImageStore(new MockInstance("mock"), config)) {
+            final Image image = loadImage("test.png");
+            final String imageId = bytesToHex(getHash(image.getBlob(), "cached.png"));
+            cachingStore.addImage(image, imageId, unclassVis);
+
+            final OffHeapByteCache cache = cachingStore.getOffHeapCache();
+            assertArrayEquals(image.getBlob(), cachingStore.getImage(imageId, unclassAuths).getBlob());
+            assertNotNull(cachingStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL));
+            assertEquals(2, cache.getMissCount());
+
+            // The original and the thumbnail are both served from the cache
+            assertArrayEquals(image.getBlob(), cachingStore.getImages(Arrays.asList(imageId), unclassAuths)
+                    .get(imageId).getBlob());
+            assertNotNull(cachingStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL));
+            assertEquals(2, cache.getHitCount());
+
+            // Deleting the image drops both
+            cachingStore.deleteImage(imageId, unclassAuths);
+            assertEquals(0, cache.size());
+            assertNull(cachingStore.getImage(imageId, unclassAuths));
+        }
+    }
+
     @After
     public void tearDown() throws Exception {
         imageStore.close();
     }
 
     private void testImage(String fileName) throws Exception {
-        byte[] bytes = null;
-        try (InputStream fileIn = AccumuloImageStoreTest.class.getResourceAsStream("/" + fileName)) {
-            bytes = IOUtils.toByteArray(fileIn);
-        }
-
         final Visibility unclassVis = new Visibility().setFormalVisibility("U");
         final Authorizations unclassAuths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U"));
 
-        final Image image = new Image();
-        image.setFileName(fileName);
-        image.setOriginalDocumentUri("file://" + fileName);
-        image.setBlob(bytes);
+        final Image image = loadImage(fileName);
+        final byte[] bytes = image.getBlob();
 
         final String imageId = bytesToHex(getHash(bytes, fileName));
         imageStore.addImage(image, imageId, unclassVis);
@@ -106,4 +170,18 @@ public class AccumuloImageStoreTest {
 
         imageStore.deleteImage(imageId, unclassAuths);
     }
+
+    private Image loadImage(String fileName) throws Exception {
+        byte[] bytes = null;
+        try (InputStream fileIn = AccumuloImageStoreTest.class.getResourceAsStream("/" + fileName)) {
+            bytes = IOUtils.toByteArray(fileIn);
+        }
+
+        final Image image = new Image();
+        image.setFileName(fileName);
+        image.setOriginalDocumentUri("file://" + fileName);
+        image.setBlob(bytes);
+
+        return image;
+    }
 }
@@ -0,0 +1,56 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class AccumuloStoreConfigTest {
+    @Test
+    public void testDefaults() {
+        final AccumuloStoreConfig config = new AccumuloStoreConfig(new Properties());
+        assertEquals(32 * 1024 * 1024, config.getWriterMaxMemory());
+        assertEquals(8, config.getWriterMaxWriteThreads());
+        assertEquals(Long.MAX_VALUE, config.getWriterMaxLatencyMs());
+        assertEquals(5, config.getChunkSizeMB());
+        assertEquals(1000, config.getScannerBatchSize());
+        assertEquals(2, config.getStreamBatchSize());
+    }
+
+    @Test
+    public void testProfileOverride() {
+        final Properties props = new Properties();
+        props.setProperty("accumulo.writer.maxMemory", "1024");
+        props.setProperty("accumulo.ingest.writer.maxMemory", "2048");
+        props.setProperty("accumulo.serving.queryThreads", "16");
+        props.setProperty("accumulo.chunkSizeMB", "bogus");
+        props.setProperty("accumulo.serving.scanner.batchSize", "4000");
+
+        final AccumuloStoreConfig ingest = new AccumuloStoreConfig(props, AccumuloStoreConfig.INGEST_PROFILE);
+        assertEquals(2048, ingest.getWriterMaxMemory());
+        assertEquals(8, ingest.getQueryThreads());
+        assertEquals(5, ingest.getChunkSizeMB());
+
+        final AccumuloStoreConfig serving = new AccumuloStoreConfig(props, AccumuloStoreConfig.SERVING_PROFILE);
+        assertEquals(1024, serving.getWriterMaxMemory());
+        assertEquals(16, serving.getQueryThreads());
+        assertEquals(4000, serving.getScannerBatchSize());
+        assertEquals(1000, ingest.getScannerBatchSize());
+        assertEquals(2, serving.getStreamBatchSize());
+    }
+}
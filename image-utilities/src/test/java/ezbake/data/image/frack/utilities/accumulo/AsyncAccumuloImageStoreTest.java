@@ -0,0 +1,142 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getHash;
+
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.commons.io.IOUtils;
+import org.elasticsearch.common.collect.Sets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.Visibility;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.Thumbnail;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+public class AsyncAccumuloImageStoreTest {
+    private final Authorizations unclassAuths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U"));
+
+    private ExecutorService executor;
+    private AsyncAccumuloImageStore imageStore;
+
+    @Before
+    public void setUp() throws Exception {
+        final MockInstance instance = new MockInstance("mock");
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        executor = Executors.newSingleThreadExecutor();
+        imageStore = new AsyncAccumuloImageStore(new AccumuloImageStore(instance, config), executor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        imageStore.close();
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        final Image image = loadImage("test.jpg");
+        final String imageId = bytesToHex(getHash(image.getBlob(), image.getFileName()));
+        imageStore.addImage(image, imageId, new Visibility().setFormalVisibility("U")).get();
+
+        assertArrayEquals(image.getBlob(), imageStore.getImage(imageId, unclassAuths).get().getBlob());
+        assertNotNull(imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.MEDIUM).get());
+        assertNotNull(imageStore.getIndexingStatus(imageId, unclassAuths).get());
+
+        imageStore.deleteImage(imageId, unclassAuths).get();
+        assertNull(imageStore.getImage(imageId, unclassAuths).get());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final Image image = loadImage("test.png");
+        final String imageId = bytesToHex(getHash(image.getBlob(), image.getFileName()));
+        imageStore.addImage(image, imageId, new Visibility().setFormalVisibility("U")).get();
+
+        // Hold the only I/O thread so the reads below are all pending at once
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        final ListenableFuture<Thumbnail> first = imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL);
+        final ListenableFuture<Thumbnail> second =
+                imageStore.getThumbnail(imageId.toLowerCase(), unclassAuths, ThumbnailSize.SMALL);
+        final ListenableFuture<Thumbnail> cancelled =
+                imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL);
+        final ListenableFuture<Thumbnail> otherSize =
+                imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.LARGE);
+        final ListenableFuture<Thumbnail> otherAuths = imageStore.getThumbnail(imageId,
+                new Authorizations().setFormalAuthorizations(Sets.newHashSet("U", "FOUO")), ThumbnailSize.SMALL);
+
+        // Cancelling one caller's future leaves the shared read to the others
+        assertTrue(cancelled.cancel(true));
+
+        release.countDown();
+        assertNotNull(first.get());
+        assertNotNull(otherSize.get());
+        assertTrue(cancelled.isCancelled());
+
+        // Callers of a shared read get the same value, other reads scan separately
+        assertSame(first.get(), second.get());
+        assertNotSame(first.get(), otherSize.get());
+        assertNotSame(first.get(), otherAuths.get());
+
+        // Finished reads are not shared with later callers
+        assertNotSame(first.get(), imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL).get());
+    }
+
+    private Image loadImage(String fileName) throws Exception {
+        byte[] bytes = null;
+        try (InputStream fileIn = AsyncAccumuloImageStoreTest.class.getResourceAsStream("/" + fileName)) {
+            bytes = IOUtils.toByteArray(fileIn);
+        }
+
+        final Image image = new Image();
+        image.setFileName(fileName);
+        image.setOriginalDocumentUri("file://" + fileName);
+        image.setBlob(bytes);
+        return image;
+    }
+}
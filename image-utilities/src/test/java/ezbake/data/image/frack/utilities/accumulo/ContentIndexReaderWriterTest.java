@@ -0,0 +1,115 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.getContentHash;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getHash;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
+
+public class ContentIndexReaderWriterTest {
+    private AccumuloThriftReaderWriter accumuloReaderWriter;
+    private ContentIndexReaderWriter contentIndex;
+
+    @Before
+    public void setup() throws Exception {
+        final MockInstance instance = new MockInstance("mock");
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        accumuloReaderWriter = new AccumuloThriftReaderWriter(instance, config);
+        contentIndex = new ContentIndexReaderWriter(accumuloReaderWriter);
+    }
+
+    @Test
+    public void testCanonicalAndReferences() throws Exception {
+        final byte[] blob = {9, 8, 7, 6, 5};
+        final byte[] contentHash = getContentHash(blob);
+        final byte[] rowId = getHash(blob, "logo.png");
+        assertNull(contentIndex.getCanonicalRowId(contentHash, "U", "U"));
+
+        final Image image = new Image();
+        image.setFileName("logo.png");
+        image.setBlob(blob);
+        accumuloReaderWriter.writeAsync(image, rowId, "U");
+        contentIndex.putCanonicalRowId(contentHash, rowId, "U");
+        accumuloReaderWriter.flush();
+
+        assertArrayEquals(rowId, contentIndex.getCanonicalRowId(contentHash, "U", "U"));
+        assertNull(contentIndex.getCanonicalRowId(contentHash, "U", ""));
+
+        // An occurrence under another visibility must not be linked to the canonical copy
+        assertNull(contentIndex.getCanonicalRowId(contentHash, "U&S", "U,S"));
+
+        final IngestedImageInfo reference = new IngestedImageInfo();
+        reference.setOrigDocumentUri("file://other.docx");
+        reference.setFileName("other.docx_image1.png");
+        reference.setVisibility(new Visibility().setFormalVisibility("U"));
+        contentIndex.addReference(rowId, reference);
+        accumuloReaderWriter.flush();
+
+        final List<IngestedImageInfo> references = contentIndex.getReferences(rowId, "U");
+        assertEquals(1, references.size());
+        assertEquals(reference, references.get(0));
+
+        accumuloReaderWriter.delete(rowId);
+        assertNull(contentIndex.getCanonicalRowId(contentHash, "U", "U"));
+    }
+
+    @Test
+    public void testCanonicalRequiresSameVisibility() throws Exception {
+        final byte[] blob = {1, 2, 3, 4};
+        final byte[] contentHash = getContentHash(blob);
+        final byte[] secretRowId = getHash(blob, "secret.png");
+
+        final Image image = new Image();
+        image.setFileName("secret.png");
+        image.setBlob(blob);
+        accumuloReaderWriter.writeAsync(image, secretRowId, "S");
+        contentIndex.putCanonicalRowId(contentHash, secretRowId, "S");
+        accumuloReaderWriter.flush();
+
+        // A user cleared for S ingesting the same content as U gets no canonical row
+        assertNull(contentIndex.getCanonicalRowId(contentHash, "U", "U,S"));
+
+        final byte[] rowId = getHash(blob, "public.png");
+        image.setFileName("public.png");
+        accumuloReaderWriter.writeAsync(image, rowId, "U");
+        contentIndex.putCanonicalRowId(contentHash, rowId, "U");
+        accumuloReaderWriter.flush();
+
+        assertArrayEquals(rowId, contentIndex.getCanonicalRowId(contentHash, "U", "U,S"));
+        assertArrayEquals(secretRowId, contentIndex.getCanonicalRowId(contentHash, "S", "U,S"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        accumuloReaderWriter.close();
+    }
+}
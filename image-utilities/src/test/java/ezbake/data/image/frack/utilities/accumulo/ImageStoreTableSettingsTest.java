@@ -0,0 +1,89 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.conf.Property;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImageStoreTableSettingsTest {
+    private MockInstance instance;
+    private Properties config;
+
+    @Before
+    public void setup() {
+        instance = new MockInstance("mock");
+        config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+    }
+
+    @Test
+    public void testCompressionDefaults() {
+        assertEquals("gz", new ImageStoreTableSettings(config).getCompression());
+
+        config.setProperty(ImageStoreTableSettings.COMPRESSION_KEY, "bogus");
+        assertEquals("gz", new ImageStoreTableSettings(config).getCompression());
+    }
+
+    @Test
+    public void testApplyToExistingTable() throws Exception {
+        config.setProperty(ImageStoreTableSettings.COMPRESSION_KEY, "snappy");
+        final AccumuloThriftReaderWriter accumuloReaderWriter = new AccumuloThriftReaderWriter(instance, config);
+        accumuloReaderWriter.applyTableSettings(true);
+        accumuloReaderWriter.close();
+
+        final Map<String, String> tableProperties = getTableProperties();
+        assertEquals("snappy", tableProperties.get(Property.TABLE_FILE_COMPRESSION_TYPE.getKey()));
+        assertEquals("true", tableProperties.get(Property.TABLE_BLOOM_ENABLED.getKey()));
+        assertEquals("true", tableProperties.get(Property.TABLE_INDEXCACHE_ENABLED.getKey()));
+        assertEquals("true", tableProperties.get(Property.TABLE_BLOCKCACHE_ENABLED.getKey()));
+    }
+
+    @Test
+    public void testLocalityGroups() throws Exception {
+        final AccumuloThriftReaderWriter accumuloReaderWriter = new AccumuloThriftReaderWriter(instance, config);
+        accumuloReaderWriter.applyTableSettings(false);
+        accumuloReaderWriter.close();
+
+        final ImageStoreTableSettings settings = new ImageStoreTableSettings(config);
+        final TableOperations operations = instance.getConnector("", new PasswordToken("")).tableOperations();
+        assertEquals(settings.getLocalityGroups(), operations.getLocalityGroups("ImageStore"));
+        assertEquals(4, settings.getLocalityGroups().size());
+
+        config.setProperty(ImageStoreTableSettings.LOCALITY_GROUPS_KEY, "false");
+        assertTrue(new ImageStoreTableSettings(config).getLocalityGroups().isEmpty());
+    }
+
+    private Map<String, String> getTableProperties() throws Exception {
+        final TableOperations operations = instance.getConnector("", new PasswordToken("")).tableOperations();
+        final Map<String, String> properties = new HashMap<>();
+        for (final Map.Entry<String, String> property : operations.getProperties("ImageStore")) {
+            properties.put(property.getKey(), property.getValue());
+        }
+
+        return properties;
+    }
+}
@@ -0,0 +1,85 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+import ezbake.services.indexing.image.thrift.IndexingStage;
+import ezbake.services.indexing.image.thrift.IndexingStatus;
+
+public class IndexingStatusReaderWriterTest {
+    private AccumuloThriftReaderWriter accumuloReaderWriter;
+    private IndexingStatusReaderWriter statusReaderWriter;
+
+    @Before
+    public void setup() throws Exception {
+        final MockInstance instance = new MockInstance("mock");
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        accumuloReaderWriter = new AccumuloThriftReaderWriter(instance, config);
+        statusReaderWriter = new IndexingStatusReaderWriter(accumuloReaderWriter);
+    }
+
+    @Test
+    public void testStageCells() throws Exception {
+        final byte[] rowId = "statusStages".getBytes();
+        assertTrue(statusReaderWriter.getStatus(rowId, "U").getCompletedStages().isEmpty());
+
+        for (final IndexingStage stage : IndexingStage.values()) {
+            statusReaderWriter.addCompletedStage(rowId, "U", stage);
+            statusReaderWriter.addCompletedStage(rowId, "U", stage);
+        }
+        accumuloReaderWriter.flush();
+
+        final IndexingStatus status = statusReaderWriter.getStatus(rowId, "U");
+        assertEquals(IndexingStage.values().length, status.getCompletedStagesSize());
+        assertTrue(status.isCompleted());
+    }
+
+    @Test
+    public void testLegacyStatusMerged() throws Exception {
+        final byte[] rowId = "statusLegacy".getBytes();
+        final IndexingStatus legacy =
+                new IndexingStatus(Arrays.asList(IndexingStage.EXTRACTED_FROM_DOC, IndexingStage.BINARY_SAVED), false);
+        accumuloReaderWriter.write(legacy, rowId, "U", IndexingStatusReaderWriter.STATUS_FAMILY);
+
+        statusReaderWriter.addCompletedStage(rowId, "U", IndexingStage.TO_PROCESSING_WORKERS);
+        accumuloReaderWriter.flush();
+
+        final IndexingStatus status = statusReaderWriter.getStatus(rowId, "U");
+        assertEquals(
+                Sets.newHashSet(IndexingStage.EXTRACTED_FROM_DOC, IndexingStage.BINARY_SAVED,
+                        IndexingStage.TO_PROCESSING_WORKERS), Sets.newHashSet(status.getCompletedStages()));
+        assertFalse(status.isCompleted());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        accumuloReaderWriter.close();
+    }
+}
@@ -16,6 +16,10 @@ package ezbake.data.image.frack.utilities.accumulo;
 
 import static org.apache.commons.io.IOUtils.toByteArray;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.InputStream;
 import java.util.Properties;
@@ -25,7 +29,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.thrift.ThriftUtils;
 
 public class MockAccumuloTest {
     private AccumuloThriftReaderWriter accumuloReaderWriter;
@@ -58,6 +65,46 @@ public class MockAccumuloTest {
         assertArrayEquals(bytes, bytesR);
     }
 
+    @Test
+    public void testStreamRead() throws Exception {
+        final String fileName = "test.jpg";
+        byte[] bytes = null;
+        try (InputStream fileIn = MockAccumuloTest.class.getResourceAsStream("/" + fileName)) {
+            bytes = toByteArray(fileIn);
+        }
+
+        final Image image = new Image();
+        image.setFileName(fileName);
+        image.setOriginalDocumentUri("file://" + fileName);
+        image.setBlob(bytes);
+        accumuloReaderWriter.write(image, fileName.getBytes(), "U");
+
+        final byte[] serialized = ThriftUtils.serialize(image);
+        try (ChunkedValueInputStream stream =
+                accumuloReaderWriter.openStream(fileName.getBytes(), "U", "Image_Chunk")) {
+            assertNotNull(stream);
+            assertEquals(serialized.length, stream.getLength());
+            assertArrayEquals(serialized, toByteArray(stream));
+        }
+
+        assertNull(accumuloReaderWriter.openStream("missing".getBytes(), "U", "Image_Chunk"));
+    }
+
+    @Test
+    public void testAsyncWriteFlush() throws Exception {
+        final Image image = new Image();
+        image.setFileName("async.png");
+        image.setBlob(new byte[] {1, 2, 3, 4});
+
+        final ListenableFuture<Void> future = accumuloReaderWriter.writeAsync(image, "async".getBytes(), "U");
+        accumuloReaderWriter.flush();
+        assertTrue(future.isDone());
+        future.get();
+
+        final Image imageR = accumuloReaderWriter.read(Image.class, "async".getBytes(), "U");
+        assertArrayEquals(image.getBlob(), imageR.getBlob());
+    }
+
     @After
     public void tearDown() throws Exception {
         accumuloReaderWriter.close();
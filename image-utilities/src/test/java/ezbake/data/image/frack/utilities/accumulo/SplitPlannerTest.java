@@ -0,0 +1,77 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.accumulo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.SortedSet;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class SplitPlannerTest {
+    @Test
+    public void testPowerOfTwoMatchesSplitBits() {
+        final SortedSet<Text> splits = SplitPlanner.getSplits(4);
+        assertEquals(3, splits.size());
+        assertEquals(new Text(new byte[] {0x40}), splits.first());
+        assertEquals(new Text(new byte[] {(byte) 0xc0}), splits.last());
+    }
+
+    @Test
+    public void testMultiByteSplits() {
+        final SortedSet<Text> splits = SplitPlanner.getSplits(1000);
+        assertEquals(999, splits.size());
+        for (final Text split : splits) {
+            assertTrue(split.getLength() > 1);
+        }
+    }
+
+    @Test
+    public void testSplitsFromExpectedVolume() {
+        final Properties config = new Properties();
+        config.setProperty(SplitPlanner.AVERAGE_IMAGE_BYTES_KEY, "1000");
+        config.setProperty(SplitPlanner.TARGET_TABLET_BYTES_KEY, "1000000");
+        config.setProperty(SplitPlanner.MAX_SPLITS_KEY, "50");
+
+        final SplitPlanner planner = new SplitPlanner(config);
+        assertTrue(planner.getSplits().isEmpty());
+        assertEquals(9, planner.getSplits(10000).size());
+        assertEquals(50, planner.getSplits(1000000).size());
+    }
+
+    @Test
+    public void testAddSplitsToLiveTable() throws Exception {
+        final MockInstance instance = new MockInstance("mock");
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        config.setProperty(SplitPlanner.AVERAGE_IMAGE_BYTES_KEY, "1000");
+        config.setProperty(SplitPlanner.TARGET_TABLET_BYTES_KEY, "1000000");
+
+        final AccumuloThriftReaderWriter accumuloReaderWriter = new AccumuloThriftReaderWriter(instance, config);
+        accumuloReaderWriter.addPlannedSplits(4000);
+        assertEquals(0, accumuloReaderWriter.addPlannedSplits(4000));
+        accumuloReaderWriter.addPlannedSplits(8000);
+        accumuloReaderWriter.close();
+
+        assertTrue(instance.getConnector("", new PasswordToken("")).tableOperations().listSplits("ImageStore")
+                .containsAll(SplitPlanner.getSplits(8)));
+    }
+}
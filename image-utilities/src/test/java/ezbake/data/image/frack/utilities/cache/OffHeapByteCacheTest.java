@@ -0,0 +1,87 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OffHeapByteCacheTest {
+    @Test
+    public void testGetReturnsCopy() {
+        final OffHeapByteCache cache = new OffHeapByteCache(1024, 4);
+        assertTrue(cache.put("a", new byte[] {1, 2, 3}));
+        assertTrue(cache.put("b", new byte[] {4, 5}));
+
+        final byte[] value = cache.get("b");
+        assertArrayEquals(new byte[] {4, 5}, value);
+
+        // The copy is not affected by later writes to the segment
+        value[0] = 9;
+        assertArrayEquals(new byte[] {4, 5}, cache.get("b"));
+
+        assertNull(cache.get("c"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testSegmentEviction() {
+        // Four 100-byte segments holding two 40-byte values each
+        final OffHeapByteCache cache = new OffHeapByteCache(400, 4);
+        for (int i = 0; i < 8; i++) {
+            cache.put("key" + i, filled(40, i));
+        }
+        assertEquals(8, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+
+        // Wraps around to the first segment, evicting both of its values together
+        cache.put("key8", filled(40, 8));
+        assertEquals(2, cache.getEvictionCount());
+        assertNull(cache.get("key0"));
+        assertNull(cache.get("key1"));
+        assertArrayEquals(filled(40, 2), cache.get("key2"));
+        assertArrayEquals(filled(40, 8), cache.get("key8"));
+
+        assertFalse(cache.put("tooLarge", new byte[101]));
+    }
+
+    @Test
+    public void testInvalidateGroup() {
+        final OffHeapByteCache cache = new OffHeapByteCache(1024, 2);
+        cache.put("row1", "row1/SMALL/U", new byte[] {1});
+        cache.put("row1", "row1/LARGE/U", new byte[] {2});
+        cache.put("row2", "row2/SMALL/U", new byte[] {3});
+
+        cache.invalidateGroup("row1");
+        assertNull(cache.get("row1/SMALL/U"));
+        assertNull(cache.get("row1/LARGE/U"));
+        assertNotNull(cache.get("row2/SMALL/U"));
+        assertEquals(1, cache.size());
+    }
+
+    private static byte[] filled(int length, int value) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+}
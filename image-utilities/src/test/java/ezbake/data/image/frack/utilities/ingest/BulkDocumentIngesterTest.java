@@ -0,0 +1,121 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ezbake.data.image.frack.utilities.accumulo.AccumuloThriftReaderWriter;
+import ezbake.data.image.frack.utilities.accumulo.ContentIndexReaderWriter;
+import ezbake.data.image.frack.utilities.accumulo.IndexingStatusReaderWriter;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IndexingStage;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
+import ezbake.services.indexing.image.thrift.Thumbnail;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+public class BulkDocumentIngesterTest {
+    @Rule
+    public TemporaryFolder workDir = new TemporaryFolder();
+
+    @Test
+    public void testBulkImport() throws Exception {
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        final AccumuloThriftReaderWriter accumuloReaderWriter =
+                new AccumuloThriftReaderWriter(new MockInstance("mock"), config);
+
+        final List<IngestedImageInfo> added;
+        try (BulkDocumentIngester ingester =
+                new BulkDocumentIngester(accumuloReaderWriter, config, workDir.getRoot().getAbsolutePath());
+                InputStream document = BulkDocumentIngesterTest.class.getResourceAsStream("/test.jpg")) {
+            added = ingester.addDocument(document, "bulk.jpg", "file://bulk.jpg", new Visibility()
+                    .setFormalVisibility("U"));
+        }
+
+        assertEquals(1, added.size());
+        final byte[] rowId = hexToBytes(added.get(0).getImageId());
+
+        final Image image = accumuloReaderWriter.read(Image.class, rowId, "U");
+        assertNotNull(image);
+        assertEquals(added.get(0).getSize(), image.getBlob().length);
+
+        final Thumbnail thumbnail = accumuloReaderWriter.read(Thumbnail.class, rowId, "U", ThumbnailSize.SMALL.name());
+        assertNotNull(thumbnail);
+
+        final List<IndexingStage> stages =
+                new IndexingStatusReaderWriter(accumuloReaderWriter).getStatus(rowId, "U").getCompletedStages();
+        assertTrue(stages.contains(IndexingStage.BINARY_SAVED));
+        assertTrue(stages.contains(IndexingStage.THUMBNAILS_GENERATED));
+
+        accumuloReaderWriter.close();
+    }
+
+    @Test
+    public void testDuplicatesBecomeReferences() throws Exception {
+        final Properties config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        final AccumuloThriftReaderWriter accumuloReaderWriter =
+                new AccumuloThriftReaderWriter(new MockInstance("mock"), config);
+
+        final Visibility visibility = new Visibility().setFormalVisibility("U");
+        final List<IngestedImageInfo> first;
+        final List<IngestedImageInfo> second;
+        final List<IngestedImageInfo> secret;
+        try (BulkDocumentIngester ingester =
+                new BulkDocumentIngester(accumuloReaderWriter, config, workDir.getRoot().getAbsolutePath())) {
+            try (InputStream document = BulkDocumentIngesterTest.class.getResourceAsStream("/test.jpg")) {
+                first = ingester.addDocument(document, "first.jpg", "file://first.jpg", visibility);
+            }
+
+            try (InputStream document = BulkDocumentIngesterTest.class.getResourceAsStream("/test.jpg")) {
+                second = ingester.addDocument(document, "second.jpg", "file://second.jpg", visibility);
+            }
+
+            try (InputStream document = BulkDocumentIngesterTest.class.getResourceAsStream("/test.jpg")) {
+                secret = ingester.addDocument(document, "secret.jpg", "file://secret.jpg", new Visibility()
+                        .setFormalVisibility("S"));
+            }
+        }
+
+        final String imageId = first.get(0).getImageId();
+        assertEquals(imageId, second.get(0).getImageId());
+        assertFalse(imageId.equals(secret.get(0).getImageId()));
+
+        final List<IngestedImageInfo> references =
+                new ContentIndexReaderWriter(accumuloReaderWriter).getReferences(hexToBytes(imageId), "U,S");
+        assertEquals(1, references.size());
+        assertEquals("file://second.jpg", references.get(0).getOrigDocumentUri());
+
+        accumuloReaderWriter.close();
+    }
+}
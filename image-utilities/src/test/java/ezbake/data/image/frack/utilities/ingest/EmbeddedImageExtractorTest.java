@@ -16,13 +16,17 @@ package ezbake.data.image.frack.utilities.ingest;
 
 import static org.apache.commons.lang.exception.ExceptionUtils.getStackTrace;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 
+import static ezbake.data.image.frack.utilities.ingest.EmbeddedImageExtractor.extractImages;
 import static ezbake.data.image.frack.utilities.ingest.EmbeddedImageExtractor.getImages;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Test;
@@ -326,4 +330,42 @@ public class EmbeddedImageExtractorTest {
 
         testImageExtract(fileName, expected);
     }
+
+    @Test
+    public void testStreamingSink() throws Exception {
+        final String fileName = "extract_test.zip";
+        final String uri = "file://" + fileName;
+        final ImageInfo[] expected =
+                {new ImageInfo(uri, fileName + "_test.bmp", "image/x-ms-bmp", 46182),
+                        new ImageInfo(uri, fileName + "_test.gif", "image/gif", 229184),
+                        new ImageInfo(uri, fileName + "_test.jpg", "image/jpeg", 134594),
+                        new ImageInfo(uri, fileName + "_test.png", "image/png", 976)};
+
+        final List<Image> streamed = new ArrayList<>();
+        final List<Boolean> duringParse = new ArrayList<>();
+        try (InputStream testFileStream = EmbeddedImageExtractorTest.class.getResourceAsStream("/" + fileName)) {
+            extractImages(testFileStream, fileName, uri, new ImageSink() {
+                @Override
+                public void accept(Image image) {
+                    streamed.add(image);
+                    duringParse.add(isCalledFromParser());
+                }
+            });
+        }
+
+        assertArrayEquals(expected, convertImageInfo(streamed));
+
+        // Each image reaches the sink from within the parser rather than once the whole document has been parsed
+        assertEquals(Collections.nCopies(expected.length, true), duringParse);
+    }
+
+    private static boolean isCalledFromParser() {
+        for (final StackTraceElement frame : Thread.currentThread().getStackTrace()) {
+            if (frame.getClassName().startsWith("org.apache.tika.parser.")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
 }
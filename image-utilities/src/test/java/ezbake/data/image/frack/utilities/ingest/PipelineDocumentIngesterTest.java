@@ -0,0 +1,186 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.image.frack.utilities.ingest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.getContentHash;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getImageId;
+import static ezbake.data.image.frack.utilities.IndexingUtils.hexToBytes;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.elasticsearch.common.collect.Sets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ezbake.data.image.frack.utilities.accumulo.AccumuloImageStore;
+import ezbake.data.image.frack.utilities.accumulo.AccumuloThriftReaderWriter;
+import ezbake.data.image.frack.utilities.accumulo.ContentIndexReaderWriter;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.ValidityCaveats;
+import ezbake.base.thrift.Visibility;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IngestedImageInfo;
+
+public class PipelineDocumentIngesterTest {
+    private MockInstance instance;
+    private Properties config;
+    private AccumuloThriftReaderWriter accumuloReaderWriter;
+    private ContentIndexReaderWriter contentIndex;
+    private PipelineDocumentIngester ingester;
+
+    @Before
+    public void setUp() throws Exception {
+        instance = new MockInstance("mock");
+        config = new Properties();
+        config.setProperty("accumulo.username", "");
+        config.setProperty("accumulo.password", "");
+        accumuloReaderWriter = new AccumuloThriftReaderWriter(instance, config);
+        contentIndex = new ContentIndexReaderWriter(accumuloReaderWriter);
+
+        // Storing images needs neither the warehouse nor the Thrift clients
+        ingester = new PipelineDocumentIngester(config, null, null, accumuloReaderWriter);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ingester.close();
+    }
+
+    @Test
+    public void testDuplicateBecomesReference() throws Exception {
+        final Image image = createImage(new byte[] {1, 1, 2, 3, 5, 8}, "logo.png");
+        final IngestedImageInfo first = createImageInfo("file://first.docx", "logo.png", "U");
+        assertTrue(ingester.storeImage(image, first, "U"));
+
+        final Image copy = createImage(new byte[] {1, 1, 2, 3, 5, 8}, "copy.png");
+        final IngestedImageInfo second = createImageInfo("file://second.docx", "copy.png", "U");
+        assertFalse(ingester.storeImage(copy, second, "U"));
+
+        // The duplicate points at the stored copy and is recorded on its row
+        assertEquals(first.getImageId(), second.getImageId());
+        final byte[] rowId = hexToBytes(first.getImageId());
+        final List<IngestedImageInfo> references = contentIndex.getReferences(rowId, "U");
+        assertEquals(1, references.size());
+        assertEquals(second, references.get(0));
+
+        assertArrayEquals(rowId, contentIndex.getCanonicalRowId(getContentHash(image.getBlob()), "U", "U"));
+        assertNull(accumuloReaderWriter.read(Image.class, getImageId(copy), "U"));
+    }
+
+    @Test
+    public void testOtherVisibilityStoredSeparately() throws Exception {
+        final Image image = createImage(new byte[] {2, 7, 1, 8, 2, 8}, "public.png");
+        final IngestedImageInfo unclassified = createImageInfo("file://public.docx", "public.png", "U");
+        assertTrue(ingester.storeImage(image, unclassified, "U,S"));
+
+        final Image secret = createImage(new byte[] {2, 7, 1, 8, 2, 8}, "secret.png");
+        final IngestedImageInfo secretInfo = createImageInfo("file://secret.docx", "secret.png", "S");
+        assertTrue(ingester.storeImage(secret, secretInfo, "U,S"));
+
+        assertNotEquals(unclassified.getImageId(), secretInfo.getImageId());
+        assertTrue(contentIndex.getReferences(hexToBytes(unclassified.getImageId()), "U,S").isEmpty());
+    }
+
+    @Test
+    public void testDeduplicationDisabled() throws Exception {
+        config.setProperty(PipelineDocumentIngester.DEDUPLICATE_KEY, "false");
+        final AccumuloThriftReaderWriter plainWriter = new AccumuloThriftReaderWriter(instance, config);
+        try (PipelineDocumentIngester plainIngester = new PipelineDocumentIngester(config, null, null, plainWriter)) {
+            final Image image = createImage(new byte[] {3, 1, 4, 1, 5, 9}, "first.png");
+            final IngestedImageInfo first = createImageInfo("file://first.docx", "first.png", "U");
+            assertTrue(plainIngester.storeImage(image, first, "U"));
+
+            final Image copy = createImage(new byte[] {3, 1, 4, 1, 5, 9}, "second.png");
+            final IngestedImageInfo second = createImageInfo("file://second.docx", "second.png", "U");
+            assertTrue(plainIngester.storeImage(copy, second, "U"));
+            plainWriter.flush();
+
+            assertNotEquals(first.getImageId(), second.getImageId());
+            assertNotNull(accumuloReaderWriter.read(Image.class, hexToBytes(second.getImageId()), "U"));
+            assertNull(contentIndex.getCanonicalRowId(getContentHash(image.getBlob()), "U", "U"));
+        }
+    }
+
+    @Test
+    public void testDeleteKeepsReferencedImage() throws Exception {
+        final Image image = createImage(new byte[] {6, 6, 2, 6, 0, 7}, "chart.png");
+        final IngestedImageInfo first = createImageInfo("file://first.docx", "chart.png", "U");
+        assertTrue(ingester.storeImage(image, first, "U"));
+        assertFalse(ingester.storeImage(createImage(image.getBlob(), "chart2.png"),
+                createImageInfo("file://second.docx", "chart2.png", "U"), "U"));
+
+        final byte[] rowId = hexToBytes(first.getImageId());
+        final byte[] contentHash = getContentHash(image.getBlob());
+        final Authorizations auths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U"));
+        try (AccumuloImageStore imageStore = new AccumuloImageStore(instance, config)) {
+            // The first delete only drops the reference, the other document still shows the image
+            imageStore.deleteImage(first.getImageId(), auths);
+            assertTrue(contentIndex.getReferences(rowId, "U").isEmpty());
+            assertNotNull(accumuloReaderWriter.read(Image.class, rowId, "U"));
+            assertArrayEquals(rowId, contentIndex.getCanonicalRowId(contentHash, "U", "U"));
+
+            // The last delete removes the stored image and its content index cell
+            imageStore.deleteImage(first.getImageId(), auths);
+            assertNull(accumuloReaderWriter.read(Image.class, rowId, "U"));
+            assertTrue(accumuloReaderWriter.readCells(contentHash, "U", "Content_Index").isEmpty());
+        }
+    }
+
+    @Test
+    public void testBroadcastersPerApp() {
+        final EzSecurityToken first = createToken("imageApp");
+        final EzSecurityToken sameApp = createToken("imageApp");
+        final EzSecurityToken otherApp = createToken("searchApp");
+
+        // Broadcasters are shared by the tokens of an app, but not across apps
+        assertEquals(PipelineDocumentIngester.getAppId(first), PipelineDocumentIngester.getAppId(sameApp));
+        assertNotEquals(PipelineDocumentIngester.getAppId(first), PipelineDocumentIngester.getAppId(otherApp));
+        assertEquals("", PipelineDocumentIngester.getAppId(new EzSecurityToken()));
+    }
+
+    private static EzSecurityToken createToken(String appId) {
+        return new EzSecurityToken().setValidity(new ValidityCaveats().setIssuedTo(appId));
+    }
+
+    private static Image createImage(byte[] blob, String fileName) {
+        final Image image = new Image();
+        image.setBlob(blob);
+        image.setFileName(fileName);
+        image.setMimeType("image/png");
+        return image;
+    }
+
+    private static IngestedImageInfo createImageInfo(String documentUri, String fileName, String visibility) {
+        final IngestedImageInfo imageInfo = new IngestedImageInfo();
+        imageInfo.setOrigDocumentUri(documentUri);
+        imageInfo.setFileName(fileName);
+        imageInfo.setVisibility(new Visibility().setFormalVisibility(visibility));
+        imageInfo.setMimeType("image/png");
+        return imageInfo;
+    }
+}
@@ -0,0 +1,176 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.image.frack.utilities.local;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import static ezbake.data.image.frack.utilities.IndexingUtils.bytesToHex;
+import static ezbake.data.image.frack.utilities.IndexingUtils.getHash;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.elasticsearch.common.collect.Sets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.Visibility;
+import ezbake.services.extractor.imagemetadata.thrift.Image;
+import ezbake.services.indexing.image.thrift.IndexingStage;
+import ezbake.services.indexing.image.thrift.IndexingStatus;
+import ezbake.services.indexing.image.thrift.ThumbnailSize;
+
+public class LocalImageBinaryStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Authorizations unclassAuths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U"));
+
+    private File directory;
+    private LocalImageBinaryStore imageStore;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("images");
+        final Properties config = new Properties();
+        config.setProperty(LocalImageBinaryStore.DIRECTORY_KEY, directory.getAbsolutePath());
+        imageStore = new LocalImageBinaryStore(config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        imageStore.close();
+    }
+
+    @Test
+    public void testAddAndRead() throws Exception {
+        final Image image = loadImage("test.jpg");
+        final String imageId = addImage(image, "U");
+
+        final Image stored = imageStore.getImage(imageId.toLowerCase(), unclassAuths);
+        assertNotNull(stored);
+        assertArrayEquals(image.getBlob(), stored.getBlob());
+
+        for (final ThumbnailSize size : ThumbnailSize.values()) {
+            assertNotNull(imageStore.getThumbnail(imageId, unclassAuths, size));
+        }
+
+        assertEquals(1, imageStore.getThumbnails(Arrays.asList(imageId), unclassAuths, ThumbnailSize.SMALL).size());
+
+        final IndexingStatus status = imageStore.getIndexingStatus(imageId, unclassAuths);
+        assertTrue(status.getCompletedStages().contains(IndexingStage.BINARY_SAVED));
+        assertTrue(status.getCompletedStages().contains(IndexingStage.THUMBNAILS_GENERATED));
+        assertFalse(status.isCompleted());
+    }
+
+    @Test
+    public void testVisibility() throws Exception {
+        final String imageId = addImage(loadImage("test.png"), "S");
+
+        assertNull(imageStore.getImage(imageId, unclassAuths));
+        assertNull(imageStore.getThumbnail(imageId, unclassAuths, ThumbnailSize.SMALL));
+        assertTrue(imageStore.getIndexingStatus(imageId, unclassAuths).getCompletedStages().isEmpty());
+
+        final Authorizations secretAuths = new Authorizations().setFormalAuthorizations(Sets.newHashSet("U", "S"));
+        assertNotNull(imageStore.getImage(imageId, secretAuths));
+    }
+
+    @Test
+    public void testDeleteAndReopen() throws Exception {
+        final String kept = addImage(loadImage("test.jpg"), "U");
+        final String deleted = addImage(loadImage("test.gif"), "U");
+        imageStore.deleteImage(deleted, unclassAuths);
+        assertNull(imageStore.getImage(deleted, unclassAuths));
+
+        imageStore.close();
+        imageStore = new LocalImageBinaryStore(directory, 1024 * 1024);
+
+        assertNotNull(imageStore.getImage(kept, unclassAuths));
+        assertNotNull(imageStore.getThumbnail(kept, unclassAuths, ThumbnailSize.LARGE));
+        assertNull(imageStore.getImage(deleted, unclassAuths));
+    }
+
+    @Test
+    public void testTornIndexLog() throws Exception {
+        final String before = addImage(loadImage("test.jpg"), "U");
+        imageStore.close();
+
+        // The start of a put record whose image ID was never fully written
+        try (FileOutputStream log = new FileOutputStream(new File(directory, "index.log"), true)) {
+            log.write(new byte[] {1, 0, 64, 'A', 'B'});
+        }
+
+        imageStore = new LocalImageBinaryStore(directory, 1024 * 1024);
+        final String after = addImage(loadImage("test.png"), "U");
+        imageStore.close();
+
+        imageStore = new LocalImageBinaryStore(directory, 1024 * 1024);
+        assertNotNull(imageStore.getImage(before, unclassAuths));
+        assertNotNull(imageStore.getImage(after, unclassAuths));
+        assertNotNull(imageStore.getThumbnail(after, unclassAuths, ThumbnailSize.SMALL));
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        final String kept = addImage(loadImage("test.jpg"), "U");
+        final String deleted = addImage(loadImage("test.png"), "U");
+        imageStore.deleteImage(deleted, unclassAuths);
+
+        final long storedBytes = imageStore.getStoredBytes();
+        imageStore.compact();
+        assertTrue(imageStore.getStoredBytes() < storedBytes);
+        assertEquals(imageStore.getImageBytes(kept), imageStore.getStoredBytes());
+        assertNotNull(imageStore.getThumbnail(kept, unclassAuths, ThumbnailSize.SMALL));
+
+        imageStore.close();
+        imageStore = new LocalImageBinaryStore(directory, 1024 * 1024);
+        assertNotNull(imageStore.getImage(kept, unclassAuths));
+        assertNull(imageStore.getImage(deleted, unclassAuths));
+        assertEquals(imageStore.getImageBytes(kept), imageStore.getStoredBytes());
+    }
+
+    private Image loadImage(String fileName) throws Exception {
+        byte[] bytes = null;
+        try (InputStream fileIn = LocalImageBinaryStoreTest.class.getResourceAsStream("/" + fileName)) {
+            bytes = IOUtils.toByteArray(fileIn);
+        }
+
+        final Image image = new Image();
+        image.setFileName(fileName);
+        image.setOriginalDocumentUri("file://" + fileName);
+        image.setBlob(bytes);
+        return image;
+    }
+
+    private String addImage(Image image, String visibility) throws Exception {
+        final String imageId = bytesToHex(getHash(image.getBlob(), image.getFileName()));
+        imageStore.addImage(image, imageId, new Visibility().setFormalVisibility(visibility));
+        return imageId;
+    }
+}